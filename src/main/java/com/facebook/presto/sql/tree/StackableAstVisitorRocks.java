@@ -13,7 +13,7 @@
  */
 package com.facebook.presto.sql.tree;
 
-import java.util.LinkedList;
+import java.util.Arrays;
 import java.util.Optional;
 
 public class StackableAstVisitorRocks<R, C>
@@ -24,53 +24,95 @@ public class StackableAstVisitorRocks<R, C>
         context.push(node);
         try {
             return node.accept(this, context);
-        } finally {
+        }
+        finally {
             context.pop();
         }
     }
 
+    /**
+     * Makes {@code node} the current node without visiting it, for visitors that walk part of the
+     * tree with their own work stack. Must be followed by {@link #exit}.
+     */
+    protected void enter(Node node, StackableAstVisitorContext<C> context)
+    {
+        context.push(node);
+    }
+
+    protected void exit(StackableAstVisitorContext<C> context)
+    {
+        context.pop();
+    }
+
+    /**
+     * Ancestors of the visited node kept in a reusable array, so entering a node does not allocate.
+     * The context value is mutable, letting visitors adjust it for a subtree and restore it afterwards
+     * instead of creating a new context object.
+     */
     public static class StackableAstVisitorContext<C>
     {
-        private final LinkedList<Node> stack;
-        private final C context;
+        private static final int INITIAL_CAPACITY = 32;
+
+        private Node[] stack = new Node[INITIAL_CAPACITY];
+        private int size;
+        private int maxDepth;
+        private C context;
 
         public StackableAstVisitorContext(C context)
         {
-            this(context, new LinkedList<>());
+            this.context = context;
+        }
+
+        public C getContext()
+        {
+            return context;
         }
 
-        public StackableAstVisitorContext(C context, LinkedList<Node> stack)
+        public void setContext(C context)
         {
-            this.stack = stack;
             this.context = context;
         }
 
-        public LinkedList<Node> getStack()
+        public int getDepth()
         {
-            return stack;
+            return size;
         }
 
-        public C getContext()
+        /**
+         * Returns the greatest depth reached since creation or the last {@link #resetMaxDepth}.
+         */
+        public int getMaxDepth()
         {
-            return context;
+            return maxDepth;
+        }
+
+        public void resetMaxDepth()
+        {
+            maxDepth = size;
         }
 
         private void pop()
         {
-            stack.pop();
+            stack[--size] = null;
         }
 
         void push(Node node)
         {
-            stack.push(node);
+            if (size == stack.length) {
+                stack = Arrays.copyOf(stack, size * 2);
+            }
+            stack[size++] = node;
+            if (size > maxDepth) {
+                maxDepth = size;
+            }
         }
 
         public Optional<Node> getPreviousNode()
         {
-            if (stack.size() > 1) {
-                return Optional.of(stack.get(1));
+            if (size > 1) {
+                return Optional.of(stack[size - 2]);
             }
             return Optional.empty();
         }
     }
-}
\ No newline at end of file
+}
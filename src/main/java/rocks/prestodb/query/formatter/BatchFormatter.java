@@ -0,0 +1,86 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rocks.prestodb.query.formatter;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Throwables.throwIfUnchecked;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Formats statements on an executor and hands the results to the output in input order.
+ * <p>
+ * At most {@code reorderWindow} statements are in flight at any time: once the window is full,
+ * accepting another statement blocks until the oldest one is formatted and written out.
+ */
+public class BatchFormatter
+        implements Consumer<String>, AutoCloseable
+{
+    private final Executor executor;
+    private final int reorderWindow;
+    private final Function<String, String> formatter;
+    private final Consumer<String> output;
+    private final Queue<CompletableFuture<String>> pending = new ArrayDeque<>();
+
+    public BatchFormatter(Executor executor, int reorderWindow, Function<String, String> formatter, Consumer<String> output)
+    {
+        checkArgument(reorderWindow > 0, "reorderWindow must be positive");
+        this.executor = requireNonNull(executor, "executor is null");
+        this.reorderWindow = reorderWindow;
+        this.formatter = requireNonNull(formatter, "formatter is null");
+        this.output = requireNonNull(output, "output is null");
+    }
+
+    @Override
+    public void accept(String sql)
+    {
+        while (pending.size() >= reorderWindow) {
+            writeOldest();
+        }
+        pending.add(CompletableFuture.supplyAsync(() -> formatter.apply(sql), executor));
+    }
+
+    /**
+     * Waits for all in-flight statements and writes them out.
+     */
+    @Override
+    public void close()
+    {
+        while (!pending.isEmpty()) {
+            writeOldest();
+        }
+    }
+
+    private void writeOldest()
+    {
+        String formatted;
+        try {
+            formatted = pending.remove().join();
+        }
+        catch (CompletionException e) {
+            pending.forEach(future -> future.cancel(true));
+            pending.clear();
+            throwIfUnchecked(e.getCause());
+            throw new RuntimeException(e.getCause());
+        }
+        output.accept(formatted);
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rocks.prestodb.query.formatter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+import static com.google.common.base.Throwables.throwIfUnchecked;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Writes statements, one per line, from a dedicated thread so that producers never wait for
+ * the output. Statements are handed over through a lock-free queue in the order they are
+ * accepted and collected into a block that is written once it reaches {@code flushSize}
+ * characters, or once the oldest buffered statement has waited {@code maxFlushDelay}, which
+ * keeps interactive use responsive.
+ * <p>
+ * Producers are held back once more than four blocks are queued.
+ */
+public class BufferedStatementWriter
+        implements Consumer<String>, Closeable
+{
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+
+    private final Writer writer;
+    private final int flushSize;
+    private final long maxFlushDelayNanos;
+    private final long maxQueuedChars;
+    private final Queue<String> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicLong queuedChars = new AtomicLong();
+    private final Thread thread;
+
+    private volatile boolean closed;
+    private volatile Throwable failure;
+
+    public BufferedStatementWriter(Writer writer, int flushSize, long maxFlushDelay, TimeUnit unit)
+    {
+        checkArgument(flushSize > 0, "flushSize must be positive");
+        checkArgument(maxFlushDelay >= 0, "maxFlushDelay is negative");
+        this.writer = requireNonNull(writer, "writer is null");
+        this.flushSize = flushSize;
+        this.maxFlushDelayNanos = unit.toNanos(maxFlushDelay);
+        this.maxQueuedChars = 4L * flushSize;
+        this.thread = new Thread(this::run, "formatter-output");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queues a statement for writing.
+     *
+     * @throws UncheckedIOException if an earlier write failed
+     */
+    @Override
+    public void accept(String statement)
+    {
+        checkState(!closed, "writer is closed");
+        while (queuedChars.get() > maxQueuedChars) {
+            checkFailure();
+            LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        checkFailure();
+        queuedChars.addAndGet(statement.length());
+        queue.add(statement);
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * Writes all queued statements and closes the underlying writer.
+     */
+    @Override
+    public void close()
+            throws IOException
+    {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing output", e);
+        }
+        finally {
+            writer.close();
+        }
+        checkFailure();
+    }
+
+    private void checkFailure()
+    {
+        Throwable failure = this.failure;
+        if (failure != null) {
+            throwIfUnchecked(failure);
+            if (failure instanceof IOException) {
+                throw new UncheckedIOException((IOException) failure);
+            }
+            throw new RuntimeException(failure);
+        }
+    }
+
+    private void run()
+    {
+        int capacity = flushSize + LINE_SEPARATOR.length();
+        char[] buffer = new char[capacity];
+        int size = 0;
+        long firstBufferedNanos = 0;
+        try {
+            while (true) {
+                String statement = queue.poll();
+                if (statement != null) {
+                    queuedChars.addAndGet(-statement.length());
+                    if (size == 0) {
+                        firstBufferedNanos = System.nanoTime();
+                    }
+                    int length = statement.length() + LINE_SEPARATOR.length();
+                    if (size + length > buffer.length) {
+                        buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + length));
+                    }
+                    statement.getChars(0, statement.length(), buffer, size);
+                    LINE_SEPARATOR.getChars(0, LINE_SEPARATOR.length(), buffer, size + statement.length());
+                    size += length;
+                    if (size >= flushSize) {
+                        size = flush(buffer, size);
+                        if (buffer.length > capacity) {
+                            // grown for an oversized statement, which should not pin the memory
+                            buffer = new char[capacity];
+                        }
+                    }
+                    continue;
+                }
+
+                if (closed) {
+                    // accept is not called once closed, so nothing can be queued after this check
+                    if (queue.isEmpty()) {
+                        flush(buffer, size);
+                        return;
+                    }
+                    continue;
+                }
+                if (size == 0) {
+                    LockSupport.park(this);
+                    continue;
+                }
+                long remainingNanos = firstBufferedNanos + maxFlushDelayNanos - System.nanoTime();
+                if (remainingNanos <= 0) {
+                    size = flush(buffer, size);
+                }
+                else {
+                    LockSupport.parkNanos(this, remainingNanos);
+                }
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            failure = e;
+            queue.clear();
+            queuedChars.set(0);
+        }
+    }
+
+    private int flush(char[] buffer, int size)
+            throws IOException
+    {
+        writer.write(buffer, 0, size);
+        writer.flush();
+        return 0;
+    }
+}
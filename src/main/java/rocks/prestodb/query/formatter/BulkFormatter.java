@@ -0,0 +1,321 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rocks.prestodb.query.formatter;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.HashCode;
+import rocks.prestodb.query.formatter.CanonicalChecker.Difference;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.lang.String.format;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.util.Objects.requireNonNull;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Formats whole SQL files in parallel, either rewriting them in place or only checking whether
+ * they are formatted. A file holds any number of statements; its formatted form is every
+ * statement formatted and terminated by a newline. Files with comments are never rewritten, as
+ * formatting would drop them, and a rewritten file is replaced atomically. Files recorded in the optional
+ * {@link FormattingIndex} as formatted are skipped.
+ */
+public class BulkFormatter
+{
+    public enum Mode
+    {
+        FORMAT,
+        CHECK,
+    }
+
+    private final Function<String, String> formatter;
+    private final CanonicalChecker checker;
+    private final Mode mode;
+    private final Optional<FormattingIndex> index;
+    private final Executor executor;
+
+    /**
+     * @param formatter formats a single statement, including its terminating semicolon; fails
+     * when the formatted statement does not parse to the original, so that the file is not written
+     * @param checker tells whether a file is formatted without formatting it as a whole;
+     * must use the same options as {@code formatter}
+     */
+    public BulkFormatter(Function<String, String> formatter, CanonicalChecker checker, Mode mode, Optional<FormattingIndex> index, Executor executor)
+    {
+        this.formatter = requireNonNull(formatter, "formatter is null");
+        this.checker = requireNonNull(checker, "checker is null");
+        this.mode = requireNonNull(mode, "mode is null");
+        this.index = requireNonNull(index, "index is null");
+        this.executor = requireNonNull(executor, "executor is null");
+    }
+
+    public Result formatFiles(List<Path> files)
+    {
+        Map<Path, Difference> differences = new ConcurrentHashMap<>();
+        List<CompletableFuture<Outcome>> outcomes = files.stream()
+                .map(file -> CompletableFuture.supplyAsync(() -> process(file, differences), executor))
+                .collect(toList());
+
+        Result result = new Result();
+        for (int i = 0; i < files.size(); i++) {
+            Path file = files.get(i);
+            try {
+                result.add(file, outcomes.get(i).join());
+                if (differences.containsKey(file)) {
+                    result.differences.put(file, differences.get(file));
+                }
+            }
+            catch (RuntimeException e) {
+                result.failed.put(file, String.valueOf(e.getCause() == null ? e.getMessage() : e.getCause().getMessage()));
+            }
+        }
+        return result;
+    }
+
+    private Outcome process(Path file, Map<Path, Difference> differences)
+    {
+        try {
+            long lastModified = Files.getLastModifiedTime(file).toMillis();
+            if (index.isPresent() && index.get().isFormatted(file, lastModified)) {
+                return Outcome.SKIPPED;
+            }
+            byte[] content = Files.readAllBytes(file);
+            HashCode contentHash = FormattingIndex.hash(content);
+            if (index.isPresent() && index.get().isFormatted(file, contentHash)) {
+                index.get().setFormatted(file, lastModified, contentHash);
+                return Outcome.SKIPPED;
+            }
+
+            String sql = new String(content, UTF_8);
+            Optional<Difference> difference = checker.check(sql);
+            if (!difference.isPresent()) {
+                index.ifPresent(index -> index.setFormatted(file, lastModified, contentHash));
+                return Outcome.UNCHANGED;
+            }
+            if (mode == Mode.CHECK) {
+                index.ifPresent(index -> index.remove(file));
+                differences.put(file, difference.get());
+                return Outcome.CHANGED;
+            }
+
+            // formatting works from the syntax tree, which has no comments
+            checkArgument(!StreamingStatementSplitter.containsComments(sql), "File contains comments, which formatting would remove");
+            byte[] formattedContent = StreamingStatementSplitter.formatStatements(sql, formatter).getBytes(UTF_8);
+            replace(file, formattedContent);
+            long formattedLastModified = Files.getLastModifiedTime(file).toMillis();
+            index.ifPresent(index -> index.setFormatted(file, formattedLastModified, FormattingIndex.hash(formattedContent)));
+            return Outcome.CHANGED;
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        catch (RuntimeException e) {
+            // not parsed, or formatted to a different statement; the file is left as it was
+            index.ifPresent(index -> index.remove(file));
+            throw e;
+        }
+    }
+
+    /**
+     * Replaces the content of {@code file} atomically, so that a failed write leaves it as it was.
+     */
+    private static void replace(Path file, byte[] content)
+            throws IOException
+    {
+        Path temporary = Files.createTempFile(file.toAbsolutePath().getParent(), "." + file.getFileName(), ".tmp");
+        try {
+            Files.write(temporary, content);
+            if (Files.getFileStore(file).supportsFileAttributeView(PosixFileAttributeView.class)) {
+                Files.setPosixFilePermissions(temporary, Files.getPosixFilePermissions(file));
+            }
+            Files.move(temporary, file, REPLACE_EXISTING, ATOMIC_MOVE);
+        }
+        finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /**
+     * Expands paths into the files to format: a directory stands for all {@code .sql} files below
+     * it, a path containing {@code *}, {@code ?}, {@code [} or a brace is a glob matched against
+     * files below its directory prefix, and any other path is taken as is.
+     */
+    public static List<Path> findFiles(List<String> paths)
+            throws IOException
+    {
+        Set<Path> files = new LinkedHashSet<>();
+        for (String path : paths) {
+            int globStart = indexOfGlob(path);
+            if (globStart < 0) {
+                Path file = Paths.get(path);
+                if (Files.isDirectory(file)) {
+                    files.addAll(walk(file, candidate -> candidate.toString().endsWith(".sql")));
+                }
+                else {
+                    files.add(file);
+                }
+                continue;
+            }
+
+            int baseEnd = path.lastIndexOf('/', globStart);
+            Path base = baseEnd < 0 ? Paths.get(".") : Paths.get(path.substring(0, baseEnd + 1));
+            PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + expandAnyDirectories(path));
+            if (baseEnd < 0) {
+                files.addAll(walk(base, candidate -> matcher.matches(base.relativize(candidate))));
+            }
+            else {
+                files.addAll(walk(base, matcher::matches));
+            }
+        }
+        return ImmutableList.copyOf(files);
+    }
+
+    /**
+     * Lets {@code **}{@code /} match no directory at all, as in most shells, so that {@code dir/**}{@code /*.sql}
+     * also matches files directly in {@code dir}. Patterns with groups are left alone, since groups do not nest.
+     */
+    private static String expandAnyDirectories(String pattern)
+    {
+        if (pattern.indexOf('{') >= 0) {
+            return pattern;
+        }
+        return pattern.replace("**/", "{**/,}");
+    }
+
+    private static int indexOfGlob(String path)
+    {
+        for (int i = 0; i < path.length(); i++) {
+            if ("*?[{".indexOf(path.charAt(i)) >= 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static List<Path> walk(Path directory, Predicate<Path> filter)
+            throws IOException
+    {
+        if (!Files.isDirectory(directory)) {
+            return ImmutableList.of();
+        }
+        try (Stream<Path> stream = Files.walk(directory)) {
+            return stream
+                    .filter(Files::isRegularFile)
+                    .filter(filter)
+                    .sorted()
+                    .collect(toList());
+        }
+    }
+
+    private enum Outcome
+    {
+        SKIPPED,
+        UNCHANGED,
+        CHANGED,
+    }
+
+    public static class Result
+    {
+        private final List<Path> changed = new ArrayList<>();
+        private final Map<Path, String> failed = new LinkedHashMap<>();
+        private final Map<Path, Difference> differences = new LinkedHashMap<>();
+        private int skipped;
+        private int unchanged;
+
+        private void add(Path file, Outcome outcome)
+        {
+            switch (outcome) {
+                case SKIPPED:
+                    skipped++;
+                    break;
+                case UNCHANGED:
+                    unchanged++;
+                    break;
+                case CHANGED:
+                    changed.add(file);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown outcome: " + outcome);
+            }
+        }
+
+        /**
+         * Files that were reformatted, or in check mode, files that are not formatted.
+         */
+        public List<Path> getChanged()
+        {
+            return ImmutableList.copyOf(changed);
+        }
+
+        /**
+         * In check mode, the first difference in every file that is not formatted.
+         */
+        public Map<Path, Difference> getDifferences()
+        {
+            return ImmutableMap.copyOf(differences);
+        }
+
+        /**
+         * Files that could not be read or parsed, with the error message.
+         */
+        public Map<Path, String> getFailed()
+        {
+            return ImmutableMap.copyOf(failed);
+        }
+
+        public int getSkipped()
+        {
+            return skipped;
+        }
+
+        public int getUnchanged()
+        {
+            return unchanged;
+        }
+
+        public String getSummary(Mode mode)
+        {
+            return format("Files: %s skipped, %s unchanged, %s %s, %s failed",
+                    skipped,
+                    unchanged,
+                    changed.size(),
+                    mode == Mode.CHECK ? "not formatted" : "reformatted",
+                    failed.size());
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rocks.prestodb.query.formatter;
+
+import com.facebook.presto.sql.tree.Statement;
+
+import java.util.Optional;
+import java.util.function.Function;
+
+import static java.lang.String.format;
+import static java.util.Objects.requireNonNull;
+import static rocks.prestodb.query.formatter.StatementFormatter.formatSql;
+
+/**
+ * Tells whether SQL text is already formatted. Formatted text is compared with the input
+ * character by character while the formatter produces it, stopping at the first difference,
+ * so the formatted text is never built.
+ * <p>
+ * Formatted text is every statement formatted and terminated by a semicolon and a newline,
+ * as written by {@link BulkFormatter}.
+ */
+public class CanonicalChecker
+{
+    private final Function<String, Statement> parser;
+    private final FormattingOptions options;
+
+    public CanonicalChecker(Function<String, Statement> parser, FormattingOptions options)
+    {
+        this.parser = requireNonNull(parser, "parser is null");
+        this.options = requireNonNull(options, "options is null");
+    }
+
+    /**
+     * Returns the location of the first difference between {@code sql} and its formatted form,
+     * or empty when it is formatted.
+     */
+    public Optional<Difference> check(String sql)
+    {
+        ComparingAppendable comparing = new ComparingAppendable(sql);
+        try {
+            StreamingStatementSplitter splitter = new StreamingStatementSplitter(statement -> formatInto(statement, comparing));
+            splitter.feed(sql);
+            String partial = splitter.getPartialStatement();
+            if (!partial.isEmpty()) {
+                formatInto(partial, comparing);
+            }
+            if (comparing.position == sql.length()) {
+                return Optional.empty();
+            }
+        }
+        catch (DifferenceFoundException e) {
+            // position is at the first difference
+        }
+        return Optional.of(Difference.at(sql, comparing.position));
+    }
+
+    private void formatInto(String statement, ComparingAppendable comparing)
+    {
+        formatSql(parser.apply(statement), Optional.empty(), 0, options, comparing);
+        comparing.append(";\n");
+    }
+
+    public static class Difference
+    {
+        private final int offset;
+        private final int line;
+        private final int column;
+
+        private Difference(int offset, int line, int column)
+        {
+            this.offset = offset;
+            this.line = line;
+            this.column = column;
+        }
+
+        private static Difference at(String sql, int offset)
+        {
+            int line = 1;
+            int lineStart = 0;
+            for (int i = 0; i < offset; i++) {
+                if (sql.charAt(i) == '\n') {
+                    line++;
+                    lineStart = i + 1;
+                }
+            }
+            return new Difference(offset, line, offset - lineStart + 1);
+        }
+
+        public int getOffset()
+        {
+            return offset;
+        }
+
+        public int getLine()
+        {
+            return line;
+        }
+
+        public int getColumn()
+        {
+            return column;
+        }
+
+        @Override
+        public String toString()
+        {
+            return format("line %s, column %s", line, column);
+        }
+    }
+
+    private static class ComparingAppendable
+            implements Appendable
+    {
+        private final String expected;
+        private int position;
+
+        public ComparingAppendable(String expected)
+        {
+            this.expected = expected;
+        }
+
+        @Override
+        public Appendable append(CharSequence value)
+        {
+            return append(value, 0, value.length());
+        }
+
+        @Override
+        public Appendable append(CharSequence value, int start, int end)
+        {
+            for (int i = start; i < end; i++) {
+                append(value.charAt(i));
+            }
+            return this;
+        }
+
+        @Override
+        public Appendable append(char value)
+        {
+            if (position == expected.length() || expected.charAt(position) != value) {
+                throw DifferenceFoundException.INSTANCE;
+            }
+            position++;
+            return this;
+        }
+    }
+
+    /**
+     * Aborts formatting at the first difference; carries no stack trace, so throwing it is cheap.
+     */
+    private static class DifferenceFoundException
+            extends RuntimeException
+    {
+        private static final long serialVersionUID = 1L;
+
+        private static final DifferenceFoundException INSTANCE = new DifferenceFoundException();
+
+        private DifferenceFoundException()
+        {
+            super(null, null, false, false);
+        }
+    }
+}
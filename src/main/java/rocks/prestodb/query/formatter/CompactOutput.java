@@ -0,0 +1,152 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rocks.prestodb.query.formatter;
+
+/**
+ * Sink writing the statement on a single line with as little whitespace as the parser needs:
+ * every run of whitespace outside of quotes becomes one space, which is dropped next to
+ * parentheses, brackets and commas, between an operator and an operand, and at the end of the
+ * statement. The space is kept between two operators, where dropping it could form another
+ * token or a comment, such as {@code --}, so the output parses to the same tree.
+ */
+final class CompactOutput
+        extends SqlOutput
+{
+    private static final int FLUSH_SIZE = 8 * 1024;
+
+    // written text, passed on in blocks rather than one character at a time
+    private final StringBuilder buffer = new StringBuilder();
+    private char previous;
+    private boolean pendingSpace;
+    // quote character of the literal or identifier being written, or 0
+    private char quote;
+
+    CompactOutput(Appendable appendable, FormattingOptions options)
+    {
+        super(appendable, options);
+    }
+
+    @Override
+    public SqlOutput append(CharSequence value)
+    {
+        countAppended(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            compact(value.charAt(i));
+        }
+        return this;
+    }
+
+    @Override
+    public SqlOutput append(char value)
+    {
+        countAppended(1);
+        compact(value);
+        return this;
+    }
+
+    @Override
+    public SqlOutput append(long value)
+    {
+        return append(Long.toString(value));
+    }
+
+    @Override
+    public SqlOutput indent(int indent)
+    {
+        if (indent > 0) {
+            compact(' ');
+        }
+        return this;
+    }
+
+    @Override
+    public SqlOutput line(String flat, int indent, String broken)
+    {
+        return append(flat);
+    }
+
+    @Override
+    public void finish()
+    {
+        flush();
+        previous = 0;
+        pendingSpace = false;
+        quote = 0;
+    }
+
+    private void compact(char value)
+    {
+        if (quote != 0) {
+            // a doubled quote closes and reopens the literal
+            if (value == quote) {
+                quote = 0;
+            }
+            emit(value);
+            return;
+        }
+        if (Character.isWhitespace(value)) {
+            pendingSpace = previous != 0;
+            return;
+        }
+        if (pendingSpace) {
+            pendingSpace = false;
+            if (!isPunctuation(previous) && !isPunctuation(value) && isOperator(previous) == isOperator(value)) {
+                emit(' ');
+            }
+        }
+        if (value == '\'' || value == '"') {
+            quote = value;
+        }
+        emit(value);
+    }
+
+    private void emit(char value)
+    {
+        buffer.append(value);
+        previous = value;
+        if (buffer.length() >= FLUSH_SIZE) {
+            flush();
+        }
+    }
+
+    private void flush()
+    {
+        write(buffer);
+        buffer.setLength(0);
+    }
+
+    private static boolean isPunctuation(char value)
+    {
+        return value == '(' || value == ')' || value == '[' || value == ']' || value == ',';
+    }
+
+    private static boolean isOperator(char value)
+    {
+        switch (value) {
+            case '+':
+            case '-':
+            case '*':
+            case '/':
+            case '%':
+            case '=':
+            case '<':
+            case '>':
+            case '!':
+            case '|':
+                return true;
+            default:
+                return false;
+        }
+    }
+}
@@ -49,6 +49,7 @@ import com.facebook.presto.sql.tree.IsNullPredicate;
 import com.facebook.presto.sql.tree.LambdaArgumentDeclaration;
 import com.facebook.presto.sql.tree.LambdaExpression;
 import com.facebook.presto.sql.tree.LikePredicate;
+import com.facebook.presto.sql.tree.Literal;
 import com.facebook.presto.sql.tree.LogicalBinaryExpression;
 import com.facebook.presto.sql.tree.LongLiteral;
 import com.facebook.presto.sql.tree.Node;
@@ -77,21 +78,17 @@ import com.facebook.presto.sql.tree.WhenClause;
 import com.facebook.presto.sql.tree.Window;
 import com.facebook.presto.sql.tree.WindowFrame;
 import com.google.common.base.Joiner;
-import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
 import java.util.Set;
-import java.util.function.Function;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.collect.Iterables.getOnlyElement;
 import static java.lang.String.format;
-import static java.util.stream.Collectors.toList;
-import static rocks.prestodb.query.formatter.StatementFormatter.formatSql;
-import static rocks.prestodb.query.formatter.StatementFormatter.indentString;
+import static java.util.Objects.requireNonNull;
 
 public final class ExpressionFormatter
 {
@@ -101,676 +98,1226 @@ public final class ExpressionFormatter
 
     public static String formatExpression(Expression expression, Optional<List<Expression>> parameters, int indent)
     {
-        return new Formatter(parameters).process(expression, new StackableAstVisitorContext<>(indent));
+        StringBuilder builder = new StringBuilder();
+        formatExpression(expression, parameters, indent, builder);
+        return builder.toString();
     }
 
+    public static void formatExpression(Expression expression, Optional<List<Expression>> parameters, int indent, Appendable appendable)
+    {
+        formatExpression(expression, parameters, indent, new SqlOutput(appendable));
+    }
+
+    static void formatExpression(Expression expression, Optional<List<Expression>> parameters, int indent, SqlOutput out)
+    {
+        new Formatter(out, parameters).formatExpression(expression, indent);
+    }
+
+    /**
+     * Writes expressions into one sink. An instance keeps its ancestor stack between calls, so
+     * a formatter reused for every expression of a statement does not allocate per expression.
+     */
     public static class Formatter
-            extends StackableAstVisitorRocks<String, Integer>
+            extends StackableAstVisitorRocks<Void, Integer>
     {
+        private static final int INITIAL_WORK_CAPACITY = 16;
+
+        private final SqlOutput out;
         private final Optional<List<Expression>> parameters;
+        private final boolean literalPlaceholders;
+        private final int listItemsPerLine;
+        private final StackableAstVisitorContext<Integer> context = new StackableAstVisitorContext<>(0);
+        // formats subqueries into the same output; created on first use for standalone expressions
+        private StatementFormatter.Formatter statementFormatter;
+        // records visits when profiling
+        private Profiler profiler;
+
+        // work stack of formatBinaryTree: operator node, indent before it, and its range of operands
+        private Expression[] binaryNodes = new Expression[INITIAL_WORK_CAPACITY];
+        private int[] binaryLevels = new int[INITIAL_WORK_CAPACITY];
+        private int[] binaryFirstOperands = new int[INITIAL_WORK_CAPACITY];
+        private int[] binaryNextOperands = new int[INITIAL_WORK_CAPACITY];
+        private int[] binaryEndOperands = new int[INITIAL_WORK_CAPACITY];
+        private int binarySize;
+        // operands of the operators on the work stack, the operands of a flattened chain together
+        private Expression[] operands = new Expression[INITIAL_WORK_CAPACITY];
+        private int operandCount;
+        private Expression[] pendingOperands = new Expression[INITIAL_WORK_CAPACITY];
+
+        Formatter(SqlOutput out, Optional<List<Expression>> parameters)
+        {
+            this.out = requireNonNull(out, "out is null");
+            this.parameters = requireNonNull(parameters, "parameters is null");
+            this.literalPlaceholders = out.getOptions().isLiteralPlaceholders();
+            this.listItemsPerLine = out.getOptions().getListItemsPerLine();
+        }
+
+        Formatter(SqlOutput out, Optional<List<Expression>> parameters, StatementFormatter.Formatter statementFormatter)
+        {
+            this(out, parameters);
+            this.statementFormatter = requireNonNull(statementFormatter, "statementFormatter is null");
+        }
+
+        void setProfiler(Profiler profiler)
+        {
+            this.profiler = profiler;
+        }
+
+        private StatementFormatter.Formatter statementFormatter()
+        {
+            if (statementFormatter == null) {
+                statementFormatter = new StatementFormatter.Formatter(out, parameters, this);
+            }
+            return statementFormatter;
+        }
+
+        @Override
+        public Void process(Node node, StackableAstVisitorContext<Integer> context)
+        {
+            if (profiler == null) {
+                return super.process(node, context);
+            }
+            profiler.enter(node);
+            try {
+                return super.process(node, context);
+            }
+            finally {
+                profiler.exit();
+            }
+        }
+
+        /**
+         * Formats {@code expression} at {@code indent}. May be called again from within a visit
+         * method, for expressions of a nested subquery.
+         */
+        void formatExpression(Expression expression, int indent)
+        {
+            int previousIndent = context.getContext();
+            context.setContext(indent);
+            try {
+                process(expression, context);
+            }
+            finally {
+                context.setContext(previousIndent);
+            }
+        }
+
+        /**
+         * Returns the deepest nesting of expressions formatted since the last reset, including
+         * expressions of subqueries.
+         */
+        int getMaxDepth()
+        {
+            return context.getMaxDepth();
+        }
+
+        void resetMaxDepth()
+        {
+            context.resetMaxDepth();
+        }
+
+        void formatSortItems(List<SortItem> sortItems, int indent)
+        {
+            if (profiler == null) {
+                writeSortItems(sortItems, indent);
+                return;
+            }
+            profiler.enter("formatSortItems");
+            try {
+                writeSortItems(sortItems, indent);
+            }
+            finally {
+                profiler.exit();
+            }
+        }
+
+        private void writeSortItems(List<SortItem> sortItems, int indent)
+        {
+            boolean first = true;
+            for (SortItem sortItem : sortItems) {
+                if (!first) {
+                    out.append(", ");
+                }
+                formatSortItem(sortItem, indent);
+                first = false;
+            }
+        }
+
+        private void formatSortItem(SortItem sortItem, int indent)
+        {
+            formatExpression(sortItem.getSortKey(), indent);
+
+            switch (sortItem.getOrdering()) {
+                case ASCENDING:
+                    out.append(" ASC");
+                    break;
+                case DESCENDING:
+                    out.append(" DESC");
+                    break;
+                default:
+                    throw new UnsupportedOperationException("unknown ordering: " + sortItem.getOrdering());
+            }
+
+            switch (sortItem.getNullOrdering()) {
+                case FIRST:
+                    out.append(" NULLS FIRST");
+                    break;
+                case LAST:
+                    out.append(" NULLS LAST");
+                    break;
+                case UNDEFINED:
+                    // no op
+                    break;
+                default:
+                    throw new UnsupportedOperationException("unknown null ordering: " + sortItem.getNullOrdering());
+            }
+        }
+
+        void formatGroupBy(List<GroupingElement> groupingElements, int indent)
+        {
+            if (profiler == null) {
+                writeGroupBy(groupingElements, indent);
+                return;
+            }
+            profiler.enter("formatGroupBy");
+            try {
+                writeGroupBy(groupingElements, indent);
+            }
+            finally {
+                profiler.exit();
+            }
+        }
+
+        private void writeGroupBy(List<GroupingElement> groupingElements, int indent)
+        {
+            boolean first = true;
+            for (GroupingElement groupingElement : groupingElements) {
+                if (!first) {
+                    out.append(", ");
+                }
+                if (groupingElement instanceof SimpleGroupBy) {
+                    Set<Expression> columns = ImmutableSet.copyOf(((SimpleGroupBy) groupingElement).getColumnExpressions());
+                    if (columns.size() == 1) {
+                        formatExpression(getOnlyElement(columns), indent);
+                    }
+                    else {
+                        formatGroupingColumns(columns, indent);
+                    }
+                }
+                else if (groupingElement instanceof GroupingSets) {
+                    out.append("GROUPING SETS (");
+                    boolean firstSet = true;
+                    for (List<QualifiedName> groupingSet : ((GroupingSets) groupingElement).getSets()) {
+                        if (!firstSet) {
+                            out.append(", ");
+                        }
+                        formatGroupingSet(groupingSet, out);
+                        firstSet = false;
+                    }
+                    out.append(')');
+                }
+                else if (groupingElement instanceof Cube) {
+                    out.append("CUBE ");
+                    formatGroupingSet(((Cube) groupingElement).getColumns(), out);
+                }
+                else if (groupingElement instanceof Rollup) {
+                    out.append("ROLLUP ");
+                    formatGroupingSet(((Rollup) groupingElement).getColumns(), out);
+                }
+                first = false;
+            }
+        }
 
-        public Formatter(Optional<List<Expression>> parameters)
+        private void formatGroupingColumns(Set<Expression> groupingSet, int indent)
         {
-            this.parameters = parameters;
+            out.append('(');
+            boolean first = true;
+            for (Expression expression : groupingSet) {
+                if (!first) {
+                    out.append(", ");
+                }
+                formatExpression(expression, indent);
+                first = false;
+            }
+            out.append(')');
         }
 
         @Override
-        protected String visitNode(Node node, StackableAstVisitorContext<Integer> indent)
+        protected Void visitNode(Node node, StackableAstVisitorContext<Integer> indent)
         {
             throw new UnsupportedOperationException();
         }
 
         @Override
-        protected String visitRow(Row node, StackableAstVisitorContext<Integer> indent)
+        protected Void visitRow(Row node, StackableAstVisitorContext<Integer> indent)
         {
-            return "ROW (" + Joiner.on(", ").join(node.getItems().stream()
-                    .map((child) -> process(child, indent))
-                    .collect(toList())) + ")";
+            out.append("ROW (");
+            joinExpressions(node.getItems(), indent);
+            out.append(')');
+            return null;
         }
 
         @Override
-        protected String visitExpression(Expression node, StackableAstVisitorContext<Integer> indent)
+        protected Void visitExpression(Expression node, StackableAstVisitorContext<Integer> indent)
         {
             throw new UnsupportedOperationException(format("not yet implemented: %s.visit%s", getClass().getName(), node.getClass().getSimpleName()));
         }
 
         @Override
-        protected String visitAtTimeZone(AtTimeZone node, StackableAstVisitorContext<Integer> indent)
+        protected Void visitAtTimeZone(AtTimeZone node, StackableAstVisitorContext<Integer> indent)
         {
-            return new StringBuilder()
-                    .append(process(node.getValue(), indent))
-                    .append(" AT TIME ZONE ")
-                    .append(process(node.getTimeZone(), indent)).toString();
+            process(node.getValue(), indent);
+            out.append(" AT TIME ZONE ");
+            process(node.getTimeZone(), indent);
+            return null;
         }
 
         @Override
-        protected String visitCurrentTime(CurrentTime node, StackableAstVisitorContext<Integer> indent)
+        protected Void visitCurrentTime(CurrentTime node, StackableAstVisitorContext<Integer> indent)
         {
-            StringBuilder builder = new StringBuilder();
-
-            builder.append(node.getType().getName());
+            out.append(node.getType().getName());
 
             if (node.getPrecision() != null) {
-                builder.append('(')
+                out.append('(')
                         .append(node.getPrecision())
                         .append(')');
             }
 
-            return builder.toString();
+            return null;
         }
 
         @Override
-        protected String visitExtract(Extract node, StackableAstVisitorContext<Integer> indent)
+        protected Void visitExtract(Extract node, StackableAstVisitorContext<Integer> indent)
         {
-            return "EXTRACT(" + node.getField() + " FROM " + process(node.getExpression(), indent) + ")";
+            out.append("EXTRACT(")
+                    .append(node.getField())
+                    .append(" FROM ");
+            process(node.getExpression(), indent);
+            out.append(')');
+            return null;
         }
 
         @Override
-        protected String visitBooleanLiteral(BooleanLiteral node, StackableAstVisitorContext<Integer> indent)
+        protected Void visitBooleanLiteral(BooleanLiteral node, StackableAstVisitorContext<Integer> indent)
         {
-            return String.valueOf(node.getValue());
+            out.append(String.valueOf(node.getValue()));
+            return null;
         }
 
         @Override
-        protected String visitStringLiteral(StringLiteral node, StackableAstVisitorContext<Integer> indent)
+        protected Void visitStringLiteral(StringLiteral node, StackableAstVisitorContext<Integer> indent)
         {
-            return formatStringLiteral(node.getValue());
+            if (literalPlaceholders) {
+                out.append('?');
+                return null;
+            }
+            formatStringLiteral(node.getValue(), out);
+            return null;
         }
 
         @Override
-        protected String visitCharLiteral(CharLiteral node, StackableAstVisitorContext<Integer> indent)
+        protected Void visitCharLiteral(CharLiteral node, StackableAstVisitorContext<Integer> indent)
         {
-            return "CHAR " + formatStringLiteral(node.getValue());
+            if (literalPlaceholders) {
+                out.append('?');
+                return null;
+            }
+            out.append("CHAR ");
+            formatStringLiteral(node.getValue(), out);
+            return null;
         }
 
         @Override
-        protected String visitBinaryLiteral(BinaryLiteral node, StackableAstVisitorContext<Integer> indent)
+        protected Void visitBinaryLiteral(BinaryLiteral node, StackableAstVisitorContext<Integer> indent)
         {
-            return "X'" + node.toHexString() + "'";
+            if (literalPlaceholders) {
+                out.append('?');
+                return null;
+            }
+            out.append("X'")
+                    .append(node.toHexString())
+                    .append('\'');
+            return null;
         }
 
         @Override
-        protected String visitParameter(Parameter node, StackableAstVisitorContext<Integer> indent)
+        protected Void visitParameter(Parameter node, StackableAstVisitorContext<Integer> indent)
         {
             if (parameters.isPresent()) {
                 checkArgument(node.getPosition() < parameters.get().size(), "Invalid parameter number %s.  Max value is %s", node.getPosition(), parameters
                         .get().size() - 1);
                 return process(parameters.get().get(node.getPosition()), indent);
             }
-            return "?";
+            out.append('?');
+            return null;
         }
 
         @Override
-        protected String visitArrayConstructor(ArrayConstructor node, StackableAstVisitorContext<Integer> indent)
+        protected Void visitArrayConstructor(ArrayConstructor node, StackableAstVisitorContext<Integer> indent)
         {
-            ImmutableList.Builder<String> valueStrings = ImmutableList.builder();
+            out.append("ARRAY[");
+            boolean first = true;
             for (Expression value : node.getValues()) {
-                valueStrings.add(formatExpression(value, parameters, indent.getContext() + 1));
+                if (!first) {
+                    out.append(',');
+                }
+                processIncreased(value, indent);
+                first = false;
             }
-            return "ARRAY[" + Joiner.on(",").join(valueStrings.build()) + "]";
+            out.append(']');
+            return null;
         }
 
         @Override
-        protected String visitSubscriptExpression(SubscriptExpression node, StackableAstVisitorContext<Integer> indent)
+        protected Void visitSubscriptExpression(SubscriptExpression node, StackableAstVisitorContext<Integer> indent)
         {
-            return formatExpression(node.getBase(), parameters, indent.getContext()) + "[" + formatExpression(node.getIndex(), parameters, indent.getContext
-                    ()) + "]";
+            process(node.getBase(), indent);
+            out.append('[');
+            process(node.getIndex(), indent);
+            out.append(']');
+            return null;
         }
 
         @Override
-        protected String visitLongLiteral(LongLiteral node, StackableAstVisitorContext<Integer> indent)
+        protected Void visitLongLiteral(LongLiteral node, StackableAstVisitorContext<Integer> indent)
         {
-            return Long.toString(node.getValue());
+            if (literalPlaceholders) {
+                out.append('?');
+                return null;
+            }
+            out.append(node.getValue());
+            return null;
         }
 
         @Override
-        protected String visitDoubleLiteral(DoubleLiteral node, StackableAstVisitorContext<Integer> indent)
+        protected Void visitDoubleLiteral(DoubleLiteral node, StackableAstVisitorContext<Integer> indent)
         {
-            return Double.toString(node.getValue());
+            if (literalPlaceholders) {
+                out.append('?');
+                return null;
+            }
+            out.append(Double.toString(node.getValue()));
+            return null;
         }
 
         @Override
-        protected String visitDecimalLiteral(DecimalLiteral node, StackableAstVisitorContext<Integer> indent)
+        protected Void visitDecimalLiteral(DecimalLiteral node, StackableAstVisitorContext<Integer> indent)
         {
-            return "DECIMAL '" + node.getValue() + "'";
+            if (literalPlaceholders) {
+                out.append('?');
+                return null;
+            }
+            out.append("DECIMAL '")
+                    .append(node.getValue())
+                    .append('\'');
+            return null;
         }
 
         @Override
-        protected String visitGenericLiteral(GenericLiteral node, StackableAstVisitorContext<Integer> indent)
+        protected Void visitGenericLiteral(GenericLiteral node, StackableAstVisitorContext<Integer> indent)
         {
-            return node.getType() + " " + formatStringLiteral(node.getValue());
+            if (literalPlaceholders) {
+                out.append('?');
+                return null;
+            }
+            out.append(node.getType())
+                    .append(' ');
+            formatStringLiteral(node.getValue(), out);
+            return null;
         }
 
         @Override
-        protected String visitTimeLiteral(TimeLiteral node, StackableAstVisitorContext<Integer> indent)
+        protected Void visitTimeLiteral(TimeLiteral node, StackableAstVisitorContext<Integer> indent)
         {
-            return "TIME '" + node.getValue() + "'";
+            if (literalPlaceholders) {
+                out.append('?');
+                return null;
+            }
+            out.append("TIME '")
+                    .append(node.getValue())
+                    .append('\'');
+            return null;
         }
 
         @Override
-        protected String visitTimestampLiteral(TimestampLiteral node, StackableAstVisitorContext<Integer> indent)
+        protected Void visitTimestampLiteral(TimestampLiteral node, StackableAstVisitorContext<Integer> indent)
         {
-            return "TIMESTAMP '" + node.getValue() + "'";
+            if (literalPlaceholders) {
+                out.append('?');
+                return null;
+            }
+            out.append("TIMESTAMP '")
+                    .append(node.getValue())
+                    .append('\'');
+            return null;
         }
 
         @Override
-        protected String visitNullLiteral(NullLiteral node, StackableAstVisitorContext<Integer> indent)
+        protected Void visitNullLiteral(NullLiteral node, StackableAstVisitorContext<Integer> indent)
         {
-            return "null";
+            out.append("null");
+            return null;
         }
 
         @Override
-        protected String visitIntervalLiteral(IntervalLiteral node, StackableAstVisitorContext<Integer> indent)
+        protected Void visitIntervalLiteral(IntervalLiteral node, StackableAstVisitorContext<Integer> indent)
         {
+            if (literalPlaceholders) {
+                out.append('?');
+                return null;
+            }
             String sign = (node.getSign() == IntervalLiteral.Sign.NEGATIVE) ? "- " : "";
-            StringBuilder builder = new StringBuilder()
-                    .append("INTERVAL ")
+            out.append("INTERVAL ")
                     .append(sign)
                     .append(" '").append(node.getValue()).append("' ")
                     .append(node.getStartField());
 
             if (node.getEndField().isPresent()) {
-                builder.append(" TO ").append(node.getEndField().get());
+                out.append(" TO ").append(node.getEndField().get());
             }
-            return builder.toString();
+            return null;
         }
 
         @Override
-        protected String visitSubqueryExpression(SubqueryExpression node, StackableAstVisitorContext<Integer> indent)
+        protected Void visitSubqueryExpression(SubqueryExpression node, StackableAstVisitorContext<Integer> indent)
         {
-            return "(\n" + formatSql(node.getQuery(), parameters, indent.getContext() + 1) + indentString(indent.getContext()) + ')';
+            out.append("(\n");
+            statementFormatter().process(node.getQuery(), indent.getContext() + 1);
+            out.indent(indent.getContext())
+                    .append(')');
+            return null;
         }
 
         @Override
-        protected String visitExists(ExistsPredicate node, StackableAstVisitorContext<Integer> indent)
+        protected Void visitExists(ExistsPredicate node, StackableAstVisitorContext<Integer> indent)
         {
-            return "EXISTS " + process(node.getSubquery(), indent) + indentString(indent.getContext());
+            out.append("EXISTS ");
+            process(node.getSubquery(), indent);
+            out.indent(indent.getContext());
+            return null;
         }
 
         @Override
-        protected String visitIdentifier(Identifier node, StackableAstVisitorContext<Integer> indent)
+        protected Void visitIdentifier(Identifier node, StackableAstVisitorContext<Integer> indent)
         {
-            return formatIdentifier(node.getName());
+            formatIdentifier(node.getName());
+            return null;
         }
 
         @Override
-        protected String visitLambdaArgumentDeclaration(LambdaArgumentDeclaration node, StackableAstVisitorContext<Integer> indent)
+        protected Void visitLambdaArgumentDeclaration(LambdaArgumentDeclaration node, StackableAstVisitorContext<Integer> indent)
         {
-            return formatIdentifier(node.getName());
+            formatIdentifier(node.getName());
+            return null;
         }
 
-        protected String visitSymbolReference(SymbolReference node, StackableAstVisitorContext<Integer> indent)
+        protected Void visitSymbolReference(SymbolReference node, StackableAstVisitorContext<Integer> indent)
         {
-            return formatIdentifier(node.getName());
+            formatIdentifier(node.getName());
+            return null;
         }
 
         @Override
-        protected String visitDereferenceExpression(DereferenceExpression node, StackableAstVisitorContext<Integer> indent)
+        protected Void visitDereferenceExpression(DereferenceExpression node, StackableAstVisitorContext<Integer> indent)
         {
-            String baseString = process(node.getBase(), indent);
-            return baseString + "." + formatIdentifier(node.getFieldName());
+            process(node.getBase(), indent);
+            out.append('.');
+            formatIdentifier(node.getFieldName());
+            return null;
         }
 
-        private static String formatQualifiedName(QualifiedName name)
+        private void formatQualifiedName(QualifiedName name)
         {
-            List<String> parts = new ArrayList<>();
+            boolean first = true;
             for (String part : name.getParts()) {
-                parts.add(formatIdentifier(part));
+                if (!first) {
+                    out.append('.');
+                }
+                formatIdentifier(part);
+                first = false;
             }
-            return Joiner.on('.').join(parts);
         }
 
         @Override
-        public String visitFieldReference(FieldReference node, StackableAstVisitorContext<Integer> indent)
+        public Void visitFieldReference(FieldReference node, StackableAstVisitorContext<Integer> indent)
         {
             // add colon so this won't parse
-            return ":input(" + node.getFieldIndex() + ")";
+            out.append(":input(")
+                    .append(Integer.toString(node.getFieldIndex()))
+                    .append(')');
+            return null;
         }
 
         @Override
-        protected String visitFunctionCall(FunctionCall node, StackableAstVisitorContext<Integer> indent)
+        protected Void visitFunctionCall(FunctionCall node, StackableAstVisitorContext<Integer> indent)
         {
-            StringBuilder builder = new StringBuilder();
-
-            String arguments = joinExpressions(node.getArguments(), indent);
+            formatQualifiedName(node.getName());
+            out.append('(');
+            if (node.isDistinct()) {
+                out.append("DISTINCT ");
+            }
             if (node.getArguments().isEmpty() && "count".equalsIgnoreCase(node.getName().getSuffix())) {
-                arguments = "*";
+                out.append('*');
             }
-            if (node.isDistinct()) {
-                arguments = "DISTINCT " + arguments;
+            else {
+                out.beginGroup();
+                boolean first = true;
+                for (Expression argument : node.getArguments()) {
+                    if (!first) {
+                        out.append(',');
+                    }
+                    out.softLine(first ? "" : " ", indent.getContext() + 1, "");
+                    process(argument, indent);
+                    first = false;
+                }
+                out.endGroup();
             }
-
-            builder.append(formatQualifiedName(node.getName()))
-                    .append('(').append(arguments).append(')');
+            out.append(')');
 
             if (node.getFilter().isPresent()) {
-                builder.append(" FILTER ").append(visitFilter(node.getFilter().get(), indent));
+                out.append(" FILTER ");
+                visitFilter(node.getFilter().get(), indent);
             }
 
             if (node.getWindow().isPresent()) {
-                builder.append(" OVER ").append(visitWindow(node.getWindow().get(), indent));
+                out.append(" OVER ");
+                visitWindow(node.getWindow().get(), indent);
             }
 
-            return builder.toString();
+            return null;
         }
 
         @Override
-        protected String visitLambdaExpression(LambdaExpression node, StackableAstVisitorContext<Integer> indent)
+        protected Void visitLambdaExpression(LambdaExpression node, StackableAstVisitorContext<Integer> indent)
         {
-            StringBuilder builder = new StringBuilder();
-
-            builder.append('(');
-            Joiner.on(", ").appendTo(builder, node.getArguments());
-            builder.append(") -> ");
-            builder.append(process(node.getBody(), indent));
-            return builder.toString();
+            out.append('(')
+                    .append(Joiner.on(", ").join(node.getArguments()))
+                    .append(") -> ");
+            process(node.getBody(), indent);
+            return null;
         }
 
         @Override
-        protected String visitLogicalBinaryExpression(LogicalBinaryExpression node, StackableAstVisitorContext<Integer> indent)
+        protected Void visitLogicalBinaryExpression(LogicalBinaryExpression node, StackableAstVisitorContext<Integer> indent)
         {
-            boolean sameTypeAsPreviousExpression = indent.getPreviousNode()
-                    .map(previous -> previous instanceof LogicalBinaryExpression && ((LogicalBinaryExpression) previous).getType() == node.getType())
-                    .orElse(false);
+            formatBinaryTree(node, indent);
+            return null;
+        }
 
-            if (!sameTypeAsPreviousExpression) {
-                indent = increase(indent);
+        /**
+         * Writes {@code root} and the logical and arithmetic binary expressions directly below it
+         * using a work stack on the heap instead of recursion, so that chains such as
+         * {@code a OR b OR ... OR z} of any length do not overflow the thread stack. Other operands
+         * are processed recursively as usual. {@code root} is already the current node.
+         * <p>
+         * A chain of logical expressions with the same operator is flattened into its operands
+         * when its first node is reached, and the operands are written in one pass, all within one
+         * pair of parentheses.
+         */
+        private void formatBinaryTree(Expression root, StackableAstVisitorContext<Integer> indent)
+        {
+            int base = binarySize;
+            beginBinary(root, indent);
+            while (binarySize > base) {
+                int top = binarySize - 1;
+                int next = binaryNextOperands[top];
+                if (next < binaryEndOperands[top]) {
+                    binaryNextOperands[top]++;
+                    if (next > binaryFirstOperands[top]) {
+                        Expression node = binaryNodes[top];
+                        if (node instanceof LogicalBinaryExpression) {
+                            out.line(" ", indent.getContext() + 1, "")
+                                    .append(((LogicalBinaryExpression) node).getType().toString())
+                                    .append(' ');
+                        }
+                        else {
+                            out.append(' ')
+                                    .append(((ArithmeticBinaryExpression) node).getType().getValue())
+                                    .append(' ');
+                        }
+                    }
+                    Expression operand = operands[next];
+                    if (operand instanceof LogicalBinaryExpression || operand instanceof ArithmeticBinaryExpression) {
+                        enter(operand, indent);
+                        beginBinary(operand, indent);
+                    }
+                    else {
+                        process(operand, indent);
+                    }
+                }
+                else {
+                    endBinary(indent, base);
+                }
             }
+        }
 
-            String formattedNode = process(node.getLeft(), indent) + '\n'
-                    + indentString(indent.getContext() + 1) + node.getType().toString() + ' ' + process(node.getRight(), indent);
-            if (sameTypeAsPreviousExpression) {
-                return formattedNode;
+        private void beginBinary(Expression node, StackableAstVisitorContext<Integer> indent)
+        {
+            if (binarySize == binaryNodes.length) {
+                int capacity = binarySize * 2;
+                binaryNodes = Arrays.copyOf(binaryNodes, capacity);
+                binaryLevels = Arrays.copyOf(binaryLevels, capacity);
+                binaryFirstOperands = Arrays.copyOf(binaryFirstOperands, capacity);
+                binaryNextOperands = Arrays.copyOf(binaryNextOperands, capacity);
+                binaryEndOperands = Arrays.copyOf(binaryEndOperands, capacity);
+            }
+            int top = binarySize++;
+            binaryNodes[top] = node;
+            binaryLevels[top] = indent.getContext();
+            binaryFirstOperands[top] = operandCount;
+            binaryNextOperands[top] = operandCount;
+            if (node instanceof LogicalBinaryExpression) {
+                addChainOperands((LogicalBinaryExpression) node);
             }
             else {
-                return "(" + formattedNode + ")";
+                addOperand(((ArithmeticBinaryExpression) node).getLeft());
+                addOperand(((ArithmeticBinaryExpression) node).getRight());
+            }
+            binaryEndOperands[top] = operandCount;
+
+            indent.setContext(binaryLevels[top] + 1);
+            out.append('(');
+            if (node instanceof LogicalBinaryExpression) {
+                out.beginGroup();
+            }
+        }
+
+        private void endBinary(StackableAstVisitorContext<Integer> indent, int base)
+        {
+            int top = --binarySize;
+            indent.setContext(binaryLevels[top]);
+            if (binaryNodes[top] instanceof LogicalBinaryExpression) {
+                out.endGroup();
+            }
+            out.append(')');
+
+            Arrays.fill(operands, binaryFirstOperands[top], operandCount, null);
+            operandCount = binaryFirstOperands[top];
+            binaryNodes[top] = null;
+            // the root was entered by process, which also leaves it
+            if (binarySize > base) {
+                exit(indent);
+            }
+        }
+
+        /**
+         * Adds the operands of {@code chain} and of the expressions with the same operator below
+         * it, left to right.
+         */
+        private void addChainOperands(LogicalBinaryExpression chain)
+        {
+            int pending = 0;
+            pendingOperands[pending++] = chain;
+            while (pending > 0) {
+                Expression node = pendingOperands[--pending];
+                pendingOperands[pending] = null;
+                if (node instanceof LogicalBinaryExpression && ((LogicalBinaryExpression) node).getType() == chain.getType()) {
+                    if (pending + 2 > pendingOperands.length) {
+                        pendingOperands = Arrays.copyOf(pendingOperands, pendingOperands.length * 2);
+                    }
+                    pendingOperands[pending++] = ((LogicalBinaryExpression) node).getRight();
+                    pendingOperands[pending++] = ((LogicalBinaryExpression) node).getLeft();
+                }
+                else {
+                    addOperand(node);
+                }
+            }
+        }
+
+        private void addOperand(Expression operand)
+        {
+            if (operandCount == operands.length) {
+                operands = Arrays.copyOf(operands, operandCount * 2);
             }
+            operands[operandCount++] = operand;
         }
 
-        private StackableAstVisitorContext<Integer> increase(StackableAstVisitorContext<Integer> indent)
+        /**
+         * Processes {@code node} one level deeper than its parent, reusing the context.
+         */
+        private void processIncreased(Node node, StackableAstVisitorContext<Integer> indent)
         {
-            return new StackableAstVisitorContext<>(indent.getContext() + 1, indent.getStack());
+            int level = indent.getContext();
+            indent.setContext(level + 1);
+            process(node, indent);
+            indent.setContext(level);
         }
 
         @Override
-        protected String visitNotExpression(NotExpression node, StackableAstVisitorContext<Integer> indent)
+        protected Void visitNotExpression(NotExpression node, StackableAstVisitorContext<Integer> indent)
         {
-            return "(NOT " + process(node.getValue(), indent) + ")";
+            out.append("(NOT ");
+            process(node.getValue(), indent);
+            out.append(')');
+            return null;
         }
 
         @Override
-        protected String visitComparisonExpression(ComparisonExpression node, StackableAstVisitorContext<Integer> indent)
+        protected Void visitComparisonExpression(ComparisonExpression node, StackableAstVisitorContext<Integer> indent)
         {
-            return formatBinaryExpression(node.getType().getValue(), node.getLeft(), node.getRight(), indent);
+            formatBinaryExpression(node.getType().getValue(), node.getLeft(), node.getRight(), indent);
+            return null;
         }
 
         @Override
-        protected String visitIsNullPredicate(IsNullPredicate node, StackableAstVisitorContext<Integer> indent)
+        protected Void visitIsNullPredicate(IsNullPredicate node, StackableAstVisitorContext<Integer> indent)
         {
-            return "(" + process(node.getValue(), indent) + " IS NULL)";
+            out.append('(');
+            process(node.getValue(), indent);
+            out.append(" IS NULL)");
+            return null;
         }
 
         @Override
-        protected String visitIsNotNullPredicate(IsNotNullPredicate node, StackableAstVisitorContext<Integer> indent)
+        protected Void visitIsNotNullPredicate(IsNotNullPredicate node, StackableAstVisitorContext<Integer> indent)
         {
-            return "(" + process(node.getValue(), indent) + " IS NOT NULL)";
+            out.append('(');
+            process(node.getValue(), indent);
+            out.append(" IS NOT NULL)");
+            return null;
         }
 
         @Override
-        protected String visitNullIfExpression(NullIfExpression node, StackableAstVisitorContext<Integer> indent)
+        protected Void visitNullIfExpression(NullIfExpression node, StackableAstVisitorContext<Integer> indent)
         {
-            return "NULLIF(" + process(node.getFirst(), indent) + ", " + process(node.getSecond(), indent) + ')';
+            out.append("NULLIF(");
+            process(node.getFirst(), indent);
+            out.append(", ");
+            process(node.getSecond(), indent);
+            out.append(')');
+            return null;
         }
 
         @Override
-        protected String visitIfExpression(IfExpression node, StackableAstVisitorContext<Integer> indent)
+        protected Void visitIfExpression(IfExpression node, StackableAstVisitorContext<Integer> indent)
         {
-            StringBuilder builder = new StringBuilder();
-            builder.append("IF(")
-                    .append(process(node.getCondition(), indent))
-                    .append(", ")
-                    .append(process(node.getTrueValue(), indent));
+            out.append("IF(");
+            process(node.getCondition(), indent);
+            out.append(", ");
+            process(node.getTrueValue(), indent);
             if (node.getFalseValue().isPresent()) {
-                builder.append(", ")
-                        .append(process(node.getFalseValue().get(), indent));
+                out.append(", ");
+                process(node.getFalseValue().get(), indent);
             }
-            builder.append(")");
-            return builder.toString();
+            out.append(')');
+            return null;
         }
 
         @Override
-        protected String visitTryExpression(TryExpression node, StackableAstVisitorContext<Integer> indent)
+        protected Void visitTryExpression(TryExpression node, StackableAstVisitorContext<Integer> indent)
         {
-            return "TRY(" + process(node.getInnerExpression(), indent) + ")";
+            out.append("TRY(");
+            process(node.getInnerExpression(), indent);
+            out.append(')');
+            return null;
         }
 
         @Override
-        protected String visitCoalesceExpression(CoalesceExpression node, StackableAstVisitorContext<Integer> indent)
+        protected Void visitCoalesceExpression(CoalesceExpression node, StackableAstVisitorContext<Integer> indent)
         {
-            return "COALESCE(" + joinExpressions(node.getOperands(), indent) + ")";
+            out.append("COALESCE(");
+            joinExpressions(node.getOperands(), indent);
+            out.append(')');
+            return null;
         }
 
         @Override
-        protected String visitArithmeticUnary(ArithmeticUnaryExpression node, StackableAstVisitorContext<Integer> indent)
+        protected Void visitArithmeticUnary(ArithmeticUnaryExpression node, StackableAstVisitorContext<Integer> indent)
         {
-            String value = process(node.getValue(), indent);
-
+            if (literalPlaceholders && node.getValue() instanceof Literal && !(node.getValue() instanceof NullLiteral)) {
+                // a negative number is a constant like any other
+                out.append('?');
+                return null;
+            }
             switch (node.getSign()) {
                 case MINUS:
+                    out.append('-');
                     // this is to avoid turning a sequence of "-" into a comment (i.e., "-- comment")
-                    String separator = value.startsWith("-") ? " " : "";
-                    return "-" + separator + value;
+                    if (startsWithMinus(node.getValue())) {
+                        out.append(' ');
+                    }
+                    break;
                 case PLUS:
-                    return "+" + value;
+                    out.append('+');
+                    break;
                 default:
                     throw new UnsupportedOperationException("Unsupported sign: " + node.getSign());
             }
+            process(node.getValue(), indent);
+            return null;
         }
 
-        @Override
-        protected String visitArithmeticBinary(ArithmeticBinaryExpression node, StackableAstVisitorContext<Integer> indent)
+        /**
+         * Tells whether the formatted {@code expression} begins with a minus sign, without formatting it.
+         */
+        private boolean startsWithMinus(Expression expression)
         {
-            return formatBinaryExpression(node.getType().getValue(), node.getLeft(), node.getRight(), indent);
+            if (expression instanceof ArithmeticUnaryExpression) {
+                return ((ArithmeticUnaryExpression) expression).getSign() == ArithmeticUnaryExpression.Sign.MINUS;
+            }
+            if (expression instanceof LongLiteral) {
+                return ((LongLiteral) expression).getValue() < 0;
+            }
+            if (expression instanceof DoubleLiteral) {
+                return Double.toString(((DoubleLiteral) expression).getValue()).startsWith("-");
+            }
+            if (expression instanceof DereferenceExpression) {
+                return startsWithMinus(((DereferenceExpression) expression).getBase());
+            }
+            if (expression instanceof SubscriptExpression) {
+                return startsWithMinus(((SubscriptExpression) expression).getBase());
+            }
+            if (expression instanceof AtTimeZone) {
+                return startsWithMinus(((AtTimeZone) expression).getValue());
+            }
+            if (expression instanceof Parameter && parameters.isPresent()) {
+                int position = ((Parameter) expression).getPosition();
+                return position < parameters.get().size() && startsWithMinus(parameters.get().get(position));
+            }
+            return false;
         }
 
         @Override
-        protected String visitLikePredicate(LikePredicate node, StackableAstVisitorContext<Integer> indent)
+        protected Void visitArithmeticBinary(ArithmeticBinaryExpression node, StackableAstVisitorContext<Integer> indent)
         {
-            StringBuilder builder = new StringBuilder();
+            formatBinaryTree(node, indent);
+            return null;
+        }
 
-            builder.append('(')
-                    .append(process(node.getValue(), indent))
-                    .append(" LIKE ")
-                    .append(process(node.getPattern(), indent));
+        @Override
+        protected Void visitLikePredicate(LikePredicate node, StackableAstVisitorContext<Integer> indent)
+        {
+            out.append('(');
+            process(node.getValue(), indent);
+            out.append(" LIKE ");
+            process(node.getPattern(), indent);
 
             if (node.getEscape() != null) {
-                builder.append(" ESCAPE ")
-                        .append(process(node.getEscape(), indent));
+                out.append(" ESCAPE ");
+                process(node.getEscape(), indent);
             }
 
-            builder.append(')');
+            out.append(')');
 
-            return builder.toString();
+            return null;
         }
 
         @Override
-        protected String visitAllColumns(AllColumns node, StackableAstVisitorContext<Integer> indent)
+        protected Void visitAllColumns(AllColumns node, StackableAstVisitorContext<Integer> indent)
         {
             if (node.getPrefix().isPresent()) {
-                return node.getPrefix().get() + ".*";
+                out.append(node.getPrefix().get())
+                        .append(".*");
+                return null;
             }
 
-            return "*";
+            out.append('*');
+            return null;
         }
 
         @Override
-        public String visitCast(Cast node, StackableAstVisitorContext<Integer> indent)
+        public Void visitCast(Cast node, StackableAstVisitorContext<Integer> indent)
         {
-            return (node.isSafe() ? "TRY_CAST" : "CAST") +
-                    "(" + process(node.getExpression(), indent) + " AS " + node.getType() + ")";
+            out.append(node.isSafe() ? "TRY_CAST" : "CAST")
+                    .append('(');
+            process(node.getExpression(), indent);
+            out.append(" AS ")
+                    .append(node.getType())
+                    .append(')');
+            return null;
         }
 
         @Override
-        protected String visitSearchedCaseExpression(SearchedCaseExpression node, StackableAstVisitorContext<Integer> indent)
+        protected Void visitSearchedCaseExpression(SearchedCaseExpression node, StackableAstVisitorContext<Integer> indent)
         {
-            ImmutableList.Builder<String> parts = ImmutableList.builder();
-            parts.add("CASE");
+            out.append("(CASE");
             for (WhenClause whenClause : node.getWhenClauses()) {
-                parts.add(process(whenClause, indent));
+                out.append(' ');
+                process(whenClause, indent);
             }
 
-            node.getDefaultValue()
-                    .ifPresent((value) -> parts.add("ELSE").add(process(value, indent)));
-
-            parts.add("END");
+            if (node.getDefaultValue().isPresent()) {
+                out.append(" ELSE ");
+                process(node.getDefaultValue().get(), indent);
+            }
 
-            return "(" + Joiner.on(' ').join(parts.build()) + ")";
+            out.append(" END)");
+            return null;
         }
 
         @Override
-        protected String visitSimpleCaseExpression(SimpleCaseExpression node, StackableAstVisitorContext<Integer> indent)
+        protected Void visitSimpleCaseExpression(SimpleCaseExpression node, StackableAstVisitorContext<Integer> indent)
         {
-            ImmutableList.Builder<String> parts = ImmutableList.builder();
-
-            parts.add("CASE")
-                    .add(process(node.getOperand(), indent));
+            out.append("(CASE ");
+            process(node.getOperand(), indent);
 
             for (WhenClause whenClause : node.getWhenClauses()) {
-                parts.add(process(whenClause, indent));
+                out.append(' ');
+                process(whenClause, indent);
             }
 
-            node.getDefaultValue()
-                    .ifPresent((value) -> parts.add("ELSE").add(process(value, indent)));
-
-            parts.add("END");
+            if (node.getDefaultValue().isPresent()) {
+                out.append(" ELSE ");
+                process(node.getDefaultValue().get(), indent);
+            }
 
-            return "(" + Joiner.on(' ').join(parts.build()) + ")";
+            out.append(" END)");
+            return null;
         }
 
         @Override
-        protected String visitWhenClause(WhenClause node, StackableAstVisitorContext<Integer> indent)
+        protected Void visitWhenClause(WhenClause node, StackableAstVisitorContext<Integer> indent)
         {
-            return "WHEN " + process(node.getOperand(), indent) + " THEN " + process(node.getResult(), indent);
+            out.append("WHEN ");
+            process(node.getOperand(), indent);
+            out.append(" THEN ");
+            process(node.getResult(), indent);
+            return null;
         }
 
         @Override
-        protected String visitBetweenPredicate(BetweenPredicate node, StackableAstVisitorContext<Integer> indent)
+        protected Void visitBetweenPredicate(BetweenPredicate node, StackableAstVisitorContext<Integer> indent)
         {
-            return "(" + process(node.getValue(), indent) + " BETWEEN " +
-                    process(node.getMin(), indent) + " AND " + process(node.getMax(), indent) + ")";
+            out.append('(');
+            process(node.getValue(), indent);
+            out.append(" BETWEEN ");
+            process(node.getMin(), indent);
+            out.append(" AND ");
+            process(node.getMax(), indent);
+            out.append(')');
+            return null;
         }
 
         @Override
-        protected String visitInPredicate(InPredicate node, StackableAstVisitorContext<Integer> indent)
+        protected Void visitInPredicate(InPredicate node, StackableAstVisitorContext<Integer> indent)
         {
-            return "(" + process(node.getValue(), indent) + " IN " + process(node.getValueList(), indent) + ")";
+            out.append('(');
+            process(node.getValue(), indent);
+            out.append(" IN ");
+            process(node.getValueList(), indent);
+            out.append(')');
+            return null;
         }
 
         @Override
-        protected String visitInListExpression(InListExpression node, StackableAstVisitorContext<Integer> indent)
+        protected Void visitInListExpression(InListExpression node, StackableAstVisitorContext<Integer> indent)
         {
-            StringBuilder builder = new StringBuilder("(");
-            boolean first = true;
-            for (Expression expression : node.getValues()) {
-                builder.append("\n")
-                        .append(indentString(indent.getContext() + 1))
-                        .append(first ? "  " : ", ")
-                        .append(process(expression, increase(indent)));
-                first = false;
+            if (literalPlaceholders && isConstantList(node.getValues())) {
+                // the number of constants does not matter either
+                out.append("(?)");
+                return null;
+            }
+            out.append('(')
+                    .beginGroup();
+            if (listItemsPerLine > 0 && isConstantList(node.getValues())) {
+                int count = 0;
+                for (Expression expression : node.getValues()) {
+                    if (count % listItemsPerLine == 0) {
+                        out.line(count == 0 ? "" : ", ", indent.getContext() + 1, count == 0 ? "  " : ", ");
+                    }
+                    else {
+                        out.fillLine(", ", indent.getContext() + 1, ", ");
+                    }
+                    processIncreased(expression, indent);
+                    count++;
+                }
+            }
+            else {
+                boolean first = true;
+                for (Expression expression : node.getValues()) {
+                    out.line(first ? "" : ", ", indent.getContext() + 1, first ? "  " : ", ");
+                    processIncreased(expression, indent);
+                    first = false;
+                }
             }
-            return builder.append(")").toString();
+            out.endGroup()
+                    .append(')');
+            return null;
         }
 
-        private String visitFilter(Expression node, StackableAstVisitorContext<Integer> indent)
+        /**
+         * Whether {@code values} are all literals, possibly negated, other than null and booleans.
+         */
+        static boolean isConstantList(List<Expression> values)
         {
-            return "(WHERE " + process(node, indent) + ')';
+            for (Expression value : values) {
+                if (value instanceof ArithmeticUnaryExpression) {
+                    value = ((ArithmeticUnaryExpression) value).getValue();
+                }
+                if (!(value instanceof Literal) || value instanceof NullLiteral || value instanceof BooleanLiteral) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void visitFilter(Expression node, StackableAstVisitorContext<Integer> indent)
+        {
+            out.append("(WHERE ");
+            process(node, indent);
+            out.append(')');
         }
 
         @Override
-        public String visitWindow(Window node, StackableAstVisitorContext<Integer> indent)
+        public Void visitWindow(Window node, StackableAstVisitorContext<Integer> indent)
         {
-            List<String> parts = new ArrayList<>();
+            out.append('(');
+            boolean first = true;
 
             if (!node.getPartitionBy().isEmpty()) {
-                parts.add("PARTITION BY " + joinExpressions(node.getPartitionBy(), indent));
+                out.append("PARTITION BY ");
+                joinExpressions(node.getPartitionBy(), indent);
+                first = false;
             }
             if (node.getOrderBy().isPresent()) {
-                parts.add("ORDER BY " + formatSortItems(node.getOrderBy().get().getSortItems(), parameters, indent.getContext()));
+                if (!first) {
+                    out.append(' ');
+                }
+                out.append("ORDER BY ");
+                formatSortItems(node.getOrderBy().get().getSortItems(), indent.getContext());
+                first = false;
             }
             if (node.getFrame().isPresent()) {
-                parts.add(process(node.getFrame().get(), indent));
+                if (!first) {
+                    out.append(' ');
+                }
+                process(node.getFrame().get(), indent);
             }
 
-            return '(' + Joiner.on(' ').join(parts) + ')';
+            out.append(')');
+            return null;
         }
 
         @Override
-        public String visitWindowFrame(WindowFrame node, StackableAstVisitorContext<Integer> indent)
+        public Void visitWindowFrame(WindowFrame node, StackableAstVisitorContext<Integer> indent)
         {
-            StringBuilder builder = new StringBuilder();
-
-            builder.append(node.getType().toString()).append(' ');
+            out.append(node.getType().toString()).append(' ');
 
             if (node.getEnd().isPresent()) {
-                builder.append("BETWEEN ")
-                        .append(process(node.getStart(), indent))
-                        .append(" AND ")
-                        .append(process(node.getEnd().get(), indent));
+                out.append("BETWEEN ");
+                process(node.getStart(), indent);
+                out.append(" AND ");
+                process(node.getEnd().get(), indent);
             }
             else {
-                builder.append(process(node.getStart(), indent));
+                process(node.getStart(), indent);
             }
 
-            return builder.toString();
+            return null;
         }
 
         @Override
-        public String visitFrameBound(FrameBound node, StackableAstVisitorContext<Integer> indent)
+        public Void visitFrameBound(FrameBound node, StackableAstVisitorContext<Integer> indent)
         {
             switch (node.getType()) {
                 case UNBOUNDED_PRECEDING:
-                    return "UNBOUNDED PRECEDING";
+                    out.append("UNBOUNDED PRECEDING");
+                    return null;
                 case PRECEDING:
-                    return process(node.getValue().get(), indent) + " PRECEDING";
+                    process(node.getValue().get(), indent);
+                    out.append(" PRECEDING");
+                    return null;
                 case CURRENT_ROW:
-                    return "CURRENT ROW";
+                    out.append("CURRENT ROW");
+                    return null;
                 case FOLLOWING:
-                    return process(node.getValue().get(), indent) + " FOLLOWING";
+                    process(node.getValue().get(), indent);
+                    out.append(" FOLLOWING");
+                    return null;
                 case UNBOUNDED_FOLLOWING:
-                    return "UNBOUNDED FOLLOWING";
+                    out.append("UNBOUNDED FOLLOWING");
+                    return null;
             }
             throw new IllegalArgumentException("unhandled type: " + node.getType());
         }
 
         @Override
-        protected String visitQuantifiedComparisonExpression(QuantifiedComparisonExpression node, StackableAstVisitorContext<Integer> indent)
+        protected Void visitQuantifiedComparisonExpression(QuantifiedComparisonExpression node, StackableAstVisitorContext<Integer> indent)
         {
-            return new StringBuilder()
-                    .append("(")
-                    .append(process(node.getValue(), indent))
-                    .append(' ')
+            out.append('(');
+            process(node.getValue(), indent);
+            out.append(' ')
                     .append(node.getComparisonType().getValue())
                     .append(' ')
                     .append(node.getQuantifier().toString())
-                    .append(' ')
-                    .append(process(node.getSubquery(), indent))
-                    .append(")")
-                    .toString();
+                    .append(' ');
+            process(node.getSubquery(), indent);
+            out.append(')');
+            return null;
         }
 
-        private String formatBinaryExpression(String operator, Expression left, Expression right, StackableAstVisitorContext<Integer> indent)
+        private void formatBinaryExpression(String operator, Expression left, Expression right, StackableAstVisitorContext<Integer> indent)
         {
-            return "(" + process(left, increase(indent)) + ' ' + operator + ' ' + process(right, increase(indent)) + ')';
+            out.append('(');
+            processIncreased(left, indent);
+            out.append(' ')
+                    .append(operator)
+                    .append(' ');
+            processIncreased(right, indent);
+            out.append(')');
         }
 
-        private String joinExpressions(List<Expression> expressions, StackableAstVisitorContext<Integer> indent)
+        private void joinExpressions(List<Expression> expressions, StackableAstVisitorContext<Integer> indent)
         {
-            return Joiner.on(", ").join(expressions.stream()
-                    .map((e) -> process(e, indent))
-                    .iterator());
+            boolean first = true;
+            for (Expression expression : expressions) {
+                if (!first) {
+                    out.append(", ");
+                }
+                process(expression, indent);
+                first = false;
+            }
         }
 
-        private static String formatIdentifier(String s)
+        private void formatIdentifier(String s)
         {
             // TODO: handle escaping properly
-            return '"' + s + '"';
+            out.append('"')
+                    .append(s)
+                    .append('"');
         }
     }
 
     static String formatStringLiteral(String s)
     {
-        return "'" + s.replace("'", "''") + "'";
+        return "'" + escapeQuotes(s) + "'";
     }
 
-    static String formatSortItems(List<SortItem> sortItems, Optional<List<Expression>> parameters, int indent)
+    static void formatStringLiteral(String s, SqlOutput out)
     {
-        return Joiner.on(", ").join(sortItems.stream()
-                .map(sortItemFormatterFunction(parameters, indent))
-                .iterator());
+        out.append('\'')
+                .append(escapeQuotes(s))
+                .append('\'');
     }
 
-    static String formatGroupBy(List<GroupingElement> groupingElements, int indent)
+    private static String escapeQuotes(String s)
     {
-        return formatGroupBy(groupingElements, Optional.empty(), indent);
+        // most literals hold no quote, so avoid the copy made by replace
+        if (s.indexOf('\'') < 0) {
+            return s;
+        }
+        return s.replace("'", "''");
     }
 
-    static String formatGroupBy(List<GroupingElement> groupingElements, Optional<List<Expression>> parameters, int indent)
+    static void formatSortItems(List<SortItem> sortItems, Optional<List<Expression>> parameters, int indent, SqlOutput out)
     {
-        ImmutableList.Builder<String> resultStrings = ImmutableList.builder();
-
-        for (GroupingElement groupingElement : groupingElements) {
-            String result = "";
-            if (groupingElement instanceof SimpleGroupBy) {
-                Set<Expression> columns = ImmutableSet.copyOf(((SimpleGroupBy) groupingElement).getColumnExpressions());
-                if (columns.size() == 1) {
-                    result = formatExpression(getOnlyElement(columns), parameters, indent);
-                }
-                else {
-                    result = formatGroupingSet(columns, parameters, indent);
-                }
-            }
-            else if (groupingElement instanceof GroupingSets) {
-                result = format("GROUPING SETS (%s)", Joiner.on(", ").join(
-                        ((GroupingSets) groupingElement).getSets().stream()
-                                .map(ExpressionFormatter::formatGroupingSet)
-                                .iterator()));
-            }
-            else if (groupingElement instanceof Cube) {
-                result = format("CUBE %s", formatGroupingSet(((Cube) groupingElement).getColumns()));
-            }
-            else if (groupingElement instanceof Rollup) {
-                result = format("ROLLUP %s", formatGroupingSet(((Rollup) groupingElement).getColumns()));
-            }
-            resultStrings.add(result);
-        }
-        return Joiner.on(", ").join(resultStrings.build());
+        new Formatter(out, parameters).formatSortItems(sortItems, indent);
     }
 
-    private static String formatGroupingSet(List<QualifiedName> groupingSet)
+    static void formatGroupBy(List<GroupingElement> groupingElements, int indent, SqlOutput out)
     {
-        return format("(%s)", Joiner.on(", ").join(groupingSet));
+        formatGroupBy(groupingElements, Optional.empty(), indent, out);
     }
 
-    private static String formatGroupingSet(Set<Expression> groupingSet, Optional<List<Expression>> parameters, int indent)
+    static void formatGroupBy(List<GroupingElement> groupingElements, Optional<List<Expression>> parameters, int indent, SqlOutput out)
     {
-        return format("(%s)", Joiner.on(", ").join(groupingSet.stream()
-                .map(e -> formatExpression(e, parameters, indent))
-                .iterator()));
+        new Formatter(out, parameters).formatGroupBy(groupingElements, indent);
     }
 
-    private static Function<SortItem, String> sortItemFormatterFunction(Optional<List<Expression>> parameters, int indent)
+    private static void formatGroupingSet(List<QualifiedName> groupingSet, SqlOutput out)
     {
-        return input -> {
-            StringBuilder builder = new StringBuilder();
-
-            builder.append(formatExpression(input.getSortKey(), parameters, indent));
-
-            switch (input.getOrdering()) {
-                case ASCENDING:
-                    builder.append(" ASC");
-                    break;
-                case DESCENDING:
-                    builder.append(" DESC");
-                    break;
-                default:
-                    throw new UnsupportedOperationException("unknown ordering: " + input.getOrdering());
-            }
-
-            switch (input.getNullOrdering()) {
-                case FIRST:
-                    builder.append(" NULLS FIRST");
-                    break;
-                case LAST:
-                    builder.append(" NULLS LAST");
-                    break;
-                case UNDEFINED:
-                    // no op
-                    break;
-                default:
-                    throw new UnsupportedOperationException("unknown null ordering: " + input.getNullOrdering());
-            }
-
-            return builder.toString();
-        };
+        out.append('(')
+                .append(Joiner.on(", ").join(groupingSet))
+                .append(')');
     }
 }
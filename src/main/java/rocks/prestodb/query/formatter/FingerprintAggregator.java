@@ -0,0 +1,187 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rocks.prestodb.query.formatter;
+
+import com.google.common.hash.HashCode;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Comparator.comparingLong;
+import static java.util.Objects.requireNonNull;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Counts statements per fingerprint in memory bounded by the number of tracked fingerprints,
+ * using the space-saving algorithm: when all slots are taken, a new fingerprint replaces the
+ * least frequent one and inherits its count. Every fingerprint seen more often than
+ * {@code statements / capacity} times is kept, and no count is ever too low; a count is too high
+ * by at most its {@link Entry#getError error}.
+ * <p>
+ * Not thread-safe.
+ */
+public class FingerprintAggregator
+{
+    private final int capacity;
+    private final Map<HashCode, Entry> entries;
+    // min-heap of entries by count
+    private final Entry[] heap;
+    private int size;
+    private long statements;
+
+    public FingerprintAggregator(int capacity)
+    {
+        checkArgument(capacity > 0, "capacity must be positive");
+        this.capacity = capacity;
+        this.entries = new HashMap<>(capacity * 2);
+        this.heap = new Entry[capacity];
+    }
+
+    /**
+     * Counts a statement with {@code fingerprint}. {@code normalized} is only called when the
+     * fingerprint is not tracked yet.
+     */
+    public void add(HashCode fingerprint, Supplier<String> normalized)
+    {
+        requireNonNull(fingerprint, "fingerprint is null");
+        statements++;
+        Entry entry = entries.get(fingerprint);
+        if (entry != null) {
+            entry.count++;
+            siftDown(entry.heapIndex);
+            return;
+        }
+
+        String sample = normalized.get();
+        if (size < capacity) {
+            entry = new Entry(fingerprint, sample, 1, 0);
+            entry.heapIndex = size;
+            heap[size++] = entry;
+            siftUp(entry.heapIndex);
+        }
+        else {
+            entry = heap[0];
+            entries.remove(entry.fingerprint);
+            entry.fingerprint = fingerprint;
+            entry.normalized = sample;
+            entry.error = entry.count;
+            entry.count++;
+            siftDown(0);
+        }
+        entries.put(fingerprint, entry);
+    }
+
+    public long getStatements()
+    {
+        return statements;
+    }
+
+    /**
+     * Returns the tracked fingerprints, most frequent first.
+     */
+    public List<Entry> getEntries()
+    {
+        return Arrays.stream(heap, 0, size)
+                .sorted(comparingLong(Entry::getCount).reversed())
+                .collect(toList());
+    }
+
+    private void siftUp(int index)
+    {
+        Entry entry = heap[index];
+        while (index > 0) {
+            int parent = (index - 1) / 2;
+            if (heap[parent].count <= entry.count) {
+                break;
+            }
+            place(heap[parent], index);
+            index = parent;
+        }
+        place(entry, index);
+    }
+
+    private void siftDown(int index)
+    {
+        Entry entry = heap[index];
+        while (true) {
+            int child = 2 * index + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && heap[child + 1].count < heap[child].count) {
+                child++;
+            }
+            if (entry.count <= heap[child].count) {
+                break;
+            }
+            place(heap[child], index);
+            index = child;
+        }
+        place(entry, index);
+    }
+
+    private void place(Entry entry, int index)
+    {
+        heap[index] = entry;
+        entry.heapIndex = index;
+    }
+
+    public static class Entry
+    {
+        private HashCode fingerprint;
+        private String normalized;
+        private long count;
+        private long error;
+        private int heapIndex;
+
+        private Entry(HashCode fingerprint, String normalized, long count, long error)
+        {
+            this.fingerprint = fingerprint;
+            this.normalized = requireNonNull(normalized, "normalized is null");
+            this.count = count;
+            this.error = error;
+        }
+
+        public HashCode getFingerprint()
+        {
+            return fingerprint;
+        }
+
+        /**
+         * Normalized form of the first statement counted with this fingerprint.
+         */
+        public String getNormalized()
+        {
+            return normalized;
+        }
+
+        public long getCount()
+        {
+            return count;
+        }
+
+        /**
+         * Maximum number of statements counted here that had other fingerprints, taken over from
+         * the fingerprint this one replaced.
+         */
+        public long getError()
+        {
+            return error;
+        }
+    }
+}
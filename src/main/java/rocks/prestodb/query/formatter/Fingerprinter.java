@@ -0,0 +1,95 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rocks.prestodb.query.formatter;
+
+import com.facebook.presto.sql.tree.Node;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import java.util.Optional;
+
+import static rocks.prestodb.query.formatter.StatementFormatter.formatSql;
+
+/**
+ * Normalized form and fingerprint of statements, for grouping statements that differ only in
+ * their constants. The normalized form is the formatted statement with literals written as
+ * placeholders. The fingerprint is a 128-bit murmur3 hash of the normalized form, computed while
+ * the statement is formatted, without building the text. It is stable for as long as the
+ * formatted output does not change.
+ */
+public final class Fingerprinter
+{
+    public static final FormattingOptions NORMALIZED = FormattingOptions.DEFAULT.withLiteralPlaceholders(true);
+
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+    private Fingerprinter() {}
+
+    public static String normalize(Node node)
+    {
+        return formatSql(node, NORMALIZED);
+    }
+
+    /**
+     * Returns the fingerprint of {@code node}, the same as the hash of the UTF-16 characters of
+     * {@link #normalize}. Use {@link HashCode#asLong} where 64 bits are enough.
+     */
+    public static HashCode fingerprint(Node node)
+    {
+        Hasher hasher = HASH_FUNCTION.newHasher();
+        formatSql(node, Optional.empty(), 0, NORMALIZED, new HashingAppendable(hasher));
+        return hasher.hash();
+    }
+
+    static HashCode hash(CharSequence normalized)
+    {
+        return HASH_FUNCTION.hashUnencodedChars(normalized);
+    }
+
+    private static class HashingAppendable
+            implements Appendable
+    {
+        private final Hasher hasher;
+
+        public HashingAppendable(Hasher hasher)
+        {
+            this.hasher = hasher;
+        }
+
+        @Override
+        public Appendable append(CharSequence value)
+        {
+            hasher.putUnencodedChars(value);
+            return this;
+        }
+
+        @Override
+        public Appendable append(CharSequence value, int start, int end)
+        {
+            for (int i = start; i < end; i++) {
+                hasher.putChar(value.charAt(i));
+            }
+            return this;
+        }
+
+        @Override
+        public Appendable append(char value)
+        {
+            hasher.putChar(value);
+            return this;
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rocks.prestodb.query.formatter;
+
+import com.google.common.cache.CacheStats;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import java.lang.management.ManagementFactory;
+import java.util.Optional;
+
+import static java.lang.String.format;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Statistics of statements formatted by the command line tool: parse, format and verification
+ * latencies, statement sizes and expression depths, and the verification and cache counters.
+ * Recording takes a few atomic additions per statement, so it is always on.
+ */
+public class FormatterMetrics
+        implements FormatterMetricsMBean
+{
+    public static final String OBJECT_NAME = "rocks.prestodb.query.formatter:name=FormatterMetrics";
+
+    private final Verifier verifier;
+    private final Optional<FormattingCache> cache;
+
+    private final Histogram parseNanos = new Histogram();
+    private final Histogram formatNanos = new Histogram();
+    private final Histogram statementChars = new Histogram();
+    private final Histogram expressionDepth = new Histogram();
+
+    public FormatterMetrics(Verifier verifier, Optional<FormattingCache> cache)
+    {
+        this.verifier = requireNonNull(verifier, "verifier is null");
+        this.cache = requireNonNull(cache, "cache is null");
+    }
+
+    public Histogram getParseNanos()
+    {
+        return parseNanos;
+    }
+
+    public Histogram getFormatNanos()
+    {
+        return formatNanos;
+    }
+
+    public Histogram getStatementChars()
+    {
+        return statementChars;
+    }
+
+    public Histogram getExpressionDepth()
+    {
+        return expressionDepth;
+    }
+
+    /**
+     * Registers this object with the platform MBean server under {@link #OBJECT_NAME}.
+     */
+    public void export()
+    {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.registerMBean(this, new ObjectName(OBJECT_NAME));
+        }
+        catch (JMException e) {
+            throw new IllegalStateException("Failed to register " + OBJECT_NAME, e);
+        }
+    }
+
+    @Override
+    public long getStatements()
+    {
+        return formatNanos.getCount();
+    }
+
+    @Override
+    public long getParseNanosP50()
+    {
+        return parseNanos.getValueAtPercentile(50);
+    }
+
+    @Override
+    public long getParseNanosP99()
+    {
+        return parseNanos.getValueAtPercentile(99);
+    }
+
+    @Override
+    public long getParseNanosMax()
+    {
+        return parseNanos.getMax();
+    }
+
+    @Override
+    public long getFormatNanosP50()
+    {
+        return formatNanos.getValueAtPercentile(50);
+    }
+
+    @Override
+    public long getFormatNanosP99()
+    {
+        return formatNanos.getValueAtPercentile(99);
+    }
+
+    @Override
+    public long getFormatNanosMax()
+    {
+        return formatNanos.getMax();
+    }
+
+    @Override
+    public long getVerifyNanosP50()
+    {
+        return verifier.getLatency().getValueAtPercentile(50);
+    }
+
+    @Override
+    public long getVerifyNanosP99()
+    {
+        return verifier.getLatency().getValueAtPercentile(99);
+    }
+
+    @Override
+    public long getVerifyNanosMax()
+    {
+        return verifier.getLatency().getMax();
+    }
+
+    @Override
+    public long getStatementCharsP50()
+    {
+        return statementChars.getValueAtPercentile(50);
+    }
+
+    @Override
+    public long getStatementCharsP99()
+    {
+        return statementChars.getValueAtPercentile(99);
+    }
+
+    @Override
+    public long getStatementCharsMax()
+    {
+        return statementChars.getMax();
+    }
+
+    @Override
+    public long getExpressionDepthP50()
+    {
+        return expressionDepth.getValueAtPercentile(50);
+    }
+
+    @Override
+    public long getExpressionDepthP99()
+    {
+        return expressionDepth.getValueAtPercentile(99);
+    }
+
+    @Override
+    public long getExpressionDepthMax()
+    {
+        return expressionDepth.getMax();
+    }
+
+    @Override
+    public long getVerified()
+    {
+        return verifier.getVerified();
+    }
+
+    @Override
+    public long getVerificationSkipped()
+    {
+        return verifier.getSkipped();
+    }
+
+    @Override
+    public long getVerificationMismatches()
+    {
+        return verifier.getMismatches();
+    }
+
+    @Override
+    public long getCacheHits()
+    {
+        return cache.map(formattingCache -> formattingCache.getStats().hitCount()).orElse(0L);
+    }
+
+    @Override
+    public long getCacheMisses()
+    {
+        return cache.map(formattingCache -> formattingCache.getStats().missCount()).orElse(0L);
+    }
+
+    /**
+     * Returns all statistics as one line of JSON.
+     */
+    @Override
+    public String getSummary()
+    {
+        String cacheSummary = "null";
+        if (cache.isPresent()) {
+            CacheStats stats = cache.get().getStats();
+            cacheSummary = format("{\"size\":%s,\"hits\":%s,\"misses\":%s,\"evictions\":%s}", cache.get().size(), stats.hitCount(), stats.missCount(), stats.evictionCount());
+        }
+        return format("{\"statements\":%s,\"parseNanos\":%s,\"formatNanos\":%s,\"verifyNanos\":%s,\"statementChars\":%s,\"expressionDepth\":%s," +
+                        "\"verification\":{\"verified\":%s,\"skipped\":%s,\"mismatches\":%s},\"cache\":%s}",
+                getStatements(),
+                parseNanos.toJson(),
+                formatNanos.toJson(),
+                verifier.getLatency().toJson(),
+                statementChars.toJson(),
+                expressionDepth.toJson(),
+                verifier.getVerified(),
+                verifier.getSkipped(),
+                verifier.getMismatches(),
+                cacheSummary);
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rocks.prestodb.query.formatter;
+
+/**
+ * JMX view of {@link FormatterMetrics}. Latencies are in nanoseconds, sizes in characters.
+ */
+public interface FormatterMetricsMBean
+{
+    long getStatements();
+
+    long getParseNanosP50();
+
+    long getParseNanosP99();
+
+    long getParseNanosMax();
+
+    long getFormatNanosP50();
+
+    long getFormatNanosP99();
+
+    long getFormatNanosMax();
+
+    long getVerifyNanosP50();
+
+    long getVerifyNanosP99();
+
+    long getVerifyNanosMax();
+
+    long getStatementCharsP50();
+
+    long getStatementCharsP99();
+
+    long getStatementCharsMax();
+
+    long getExpressionDepthP50();
+
+    long getExpressionDepthP99();
+
+    long getExpressionDepthMax();
+
+    long getVerified();
+
+    long getVerificationSkipped();
+
+    long getVerificationMismatches();
+
+    long getCacheHits();
+
+    long getCacheMisses();
+
+    String getSummary();
+}
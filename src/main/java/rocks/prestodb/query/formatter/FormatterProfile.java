@@ -0,0 +1,133 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rocks.prestodb.query.formatter;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.lang.String.format;
+import static java.util.Comparator.comparingLong;
+import static java.util.Objects.requireNonNull;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Calls, time and output of formatter visitors per node type, for finding the tree shapes that
+ * are slow to format. Each entry is a node type, named after its class, or a formatter method
+ * such as {@code formatGroupBy}. Self time and characters exclude those of nested entries; total
+ * time includes them, so it is counted more than once for node types nested in themselves.
+ * <p>
+ * Profiling is opt-in, see {@link QueryFormatter};
+ * it reads the clock twice per visited node. A profile may be shared by formatters on many threads.
+ */
+public final class FormatterProfile
+{
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    Entry entry(String name)
+    {
+        return entries.computeIfAbsent(name, Entry::new);
+    }
+
+    /**
+     * Returns the entries ranked by self time, highest first.
+     */
+    public List<Entry> getEntries()
+    {
+        return entries.values().stream()
+                .sorted(comparingLong(Entry::getSelfNanos).reversed()
+                        .thenComparing(Entry::getName))
+                .collect(toList());
+    }
+
+    /**
+     * Returns a table of the entries ranked by self time, one line per entry.
+     */
+    public String getReport()
+    {
+        List<Entry> entries = getEntries();
+        long totalSelfNanos = entries.stream().mapToLong(Entry::getSelfNanos).sum();
+        StringBuilder report = new StringBuilder();
+        report.append(format(Locale.ROOT, "%-32s %10s %12s %12s %7s %12s %10s%n", "node", "calls", "self ms", "total ms", "self %", "self chars", "ns/call"));
+        for (Entry entry : entries) {
+            report.append(format(Locale.ROOT, "%-32s %10d %12.3f %12.3f %6.1f%% %12d %10d%n",
+                    entry.getName(),
+                    entry.getCalls(),
+                    entry.getSelfNanos() / 1e6,
+                    entry.getTotalNanos() / 1e6,
+                    totalSelfNanos == 0 ? 0 : 100.0 * entry.getSelfNanos() / totalSelfNanos,
+                    entry.getSelfChars(),
+                    entry.getCalls() == 0 ? 0 : entry.getSelfNanos() / entry.getCalls()));
+        }
+        return report.toString();
+    }
+
+    public static final class Entry
+    {
+        private final String name;
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder selfNanos = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAdder selfChars = new LongAdder();
+
+        private Entry(String name)
+        {
+            this.name = requireNonNull(name, "name is null");
+        }
+
+        void record(long selfNanos, long totalNanos, long selfChars)
+        {
+            calls.increment();
+            this.selfNanos.add(selfNanos);
+            this.totalNanos.add(totalNanos);
+            this.selfChars.add(selfChars);
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public long getCalls()
+        {
+            return calls.sum();
+        }
+
+        public long getSelfNanos()
+        {
+            return selfNanos.sum();
+        }
+
+        public long getTotalNanos()
+        {
+            return totalNanos.sum();
+        }
+
+        /**
+         * Characters appended to the output by this entry itself, before any layout is applied.
+         */
+        public long getSelfChars()
+        {
+            return selfChars.sum();
+        }
+
+        @Override
+        public String toString()
+        {
+            return format("%s: %s calls, %s ns self, %s ns total, %s chars", name, getCalls(), getSelfNanos(), getTotalNanos(), getSelfChars());
+        }
+    }
+}
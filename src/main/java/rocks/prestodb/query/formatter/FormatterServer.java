@@ -0,0 +1,188 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rocks.prestodb.query.formatter;
+
+import com.facebook.presto.sql.parser.ParsingException;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Long-running formatter listening on a loopback TCP port, so that clients do not pay JVM
+ * startup and parser class loading for every query.
+ * <p>
+ * A connection carries any number of requests. A request is a 4-byte big-endian length followed
+ * by that many bytes of UTF-8 SQL text, possibly holding several statements. A response is a
+ * status byte ({@link #STATUS_OK}, {@link #STATUS_PARSE_ERROR} or {@link #STATUS_ERROR}), the
+ * 4-byte error line and column within the failing statement (zero unless a parse error), a 4-byte
+ * length and UTF-8 payload: the formatted SQL or the error message.
+ * <p>
+ * At most {@code maxConnections} connections are served at a time; further clients wait until
+ * one closes. Request bodies are read as they arrive, so memory follows the bytes actually sent
+ * rather than the announced length, which is limited to {@code maxRequestSize}.
+ */
+public class FormatterServer
+        implements Closeable
+{
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_PARSE_ERROR = 1;
+    public static final byte STATUS_ERROR = 2;
+
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    private final ServerSocket serverSocket;
+    private final Function<String, String> formatter;
+    private final int maxRequestSize;
+    private final ExecutorService connectionExecutor;
+
+    public FormatterServer(int port, Function<String, String> formatter, int maxConnections, int maxRequestSize)
+            throws IOException
+    {
+        checkArgument(maxConnections > 0, "maxConnections must be positive");
+        checkArgument(maxRequestSize > 0, "maxRequestSize must be positive");
+        this.formatter = requireNonNull(formatter, "formatter is null");
+        this.maxRequestSize = maxRequestSize;
+        this.connectionExecutor = Executors.newFixedThreadPool(maxConnections, new ThreadFactoryBuilder()
+                .setNameFormat("formatter-connection-%s")
+                .setDaemon(true)
+                .build());
+        this.serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+
+    public int getPort()
+    {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Accepts connections until the server is closed.
+     */
+    public void serve()
+            throws IOException
+    {
+        while (!serverSocket.isClosed()) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            }
+            catch (SocketException e) {
+                if (serverSocket.isClosed()) {
+                    return;
+                }
+                throw e;
+            }
+            connectionExecutor.execute(() -> handle(socket));
+        }
+    }
+
+    private void handle(Socket socket)
+    {
+        try (Socket connection = socket;
+                DataInputStream input = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+                DataOutputStream output = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()))) {
+            while (true) {
+                int length;
+                try {
+                    length = input.readInt();
+                }
+                catch (EOFException e) {
+                    return;
+                }
+                if (length < 0 || length > maxRequestSize) {
+                    writeResponse(output, STATUS_ERROR, 0, 0, "Request size must be between 0 and " + maxRequestSize + " bytes: " + length);
+                    return;
+                }
+                respond(readRequest(input, length), output);
+            }
+        }
+        catch (IOException e) {
+            // client went away, nothing to report to
+        }
+    }
+
+    private static String readRequest(DataInputStream input, int length)
+            throws IOException
+    {
+        ByteArrayOutputStream request = new ByteArrayOutputStream(Math.min(length, READ_BUFFER_SIZE));
+        byte[] buffer = new byte[READ_BUFFER_SIZE];
+        int remaining = length;
+        while (remaining > 0) {
+            int read = input.read(buffer, 0, Math.min(buffer.length, remaining));
+            if (read == -1) {
+                throw new EOFException("Request ended after " + (length - remaining) + " of " + length + " bytes");
+            }
+            request.write(buffer, 0, read);
+            remaining -= read;
+        }
+        return new String(request.toByteArray(), UTF_8);
+    }
+
+    private void respond(String sql, DataOutputStream output)
+            throws IOException
+    {
+        String formatted;
+        try {
+            formatted = StreamingStatementSplitter.formatStatements(sql, formatter);
+        }
+        catch (ParsingException e) {
+            writeResponse(output, STATUS_PARSE_ERROR, e.getLineNumber(), e.getColumnNumber(), e.getErrorMessage());
+            return;
+        }
+        catch (RuntimeException e) {
+            writeResponse(output, STATUS_ERROR, 0, 0, String.valueOf(e.getMessage()));
+            return;
+        }
+        writeResponse(output, STATUS_OK, 0, 0, formatted);
+    }
+
+    private static void writeResponse(DataOutputStream output, byte status, int line, int column, String payload)
+            throws IOException
+    {
+        byte[] bytes = payload.getBytes(UTF_8);
+        output.writeByte(status);
+        output.writeInt(line);
+        output.writeInt(column);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+        output.flush();
+    }
+
+    @Override
+    public void close()
+            throws IOException
+    {
+        serverSocket.close();
+        connectionExecutor.shutdownNow();
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rocks.prestodb.query.formatter;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Function;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.lang.String.format;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Bounded cache of formatted statements, keyed by a 128-bit hash of the formatting options and
+ * the statement text, so repeated queries skip parsing and formatting altogether.
+ */
+public class FormattingCache
+{
+    private static final int SNAPSHOT_MAGIC = 0x50514643;
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+    private final Cache<HashCode, String> cache;
+    private final String options;
+
+    /**
+     * @param options identifies the formatting options that influence the output; entries
+     * formatted with different options never share a key
+     */
+    public FormattingCache(long maximumSize, String options)
+    {
+        checkArgument(maximumSize > 0, "maximumSize must be positive");
+        this.options = requireNonNull(options, "options is null");
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .recordStats()
+                .build();
+    }
+
+    public String get(String sql, Function<String, String> formatter)
+    {
+        HashCode key = key(sql);
+        String formatted = cache.getIfPresent(key);
+        if (formatted == null) {
+            formatted = formatter.apply(sql);
+            cache.put(key, formatted);
+        }
+        return formatted;
+    }
+
+    public Optional<String> getIfPresent(String sql)
+    {
+        return Optional.ofNullable(cache.getIfPresent(key(sql)));
+    }
+
+    /**
+     * Caches {@code formatted} as the formatting of {@code sql}; callers only put results that
+     * did not fail verification.
+     */
+    public void put(String sql, String formatted)
+    {
+        cache.put(key(sql), requireNonNull(formatted, "formatted is null"));
+    }
+
+    private HashCode key(String sql)
+    {
+        return HASH_FUNCTION.newHasher()
+                .putString(options, UTF_8)
+                .putInt(options.length())
+                .putString(sql, UTF_8)
+                .hash();
+    }
+
+    public long size()
+    {
+        return cache.size();
+    }
+
+    public CacheStats getStats()
+    {
+        return cache.stats();
+    }
+
+    public String getSummary()
+    {
+        CacheStats stats = getStats();
+        return format("Cache: %s entries, %s hits, %s misses, %s evictions", size(), stats.hitCount(), stats.missCount(), stats.evictionCount());
+    }
+
+    /**
+     * Loads entries saved by {@link #save}; a missing file is ignored.
+     */
+    public void load(Path path)
+            throws IOException
+    {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (input.readInt() != SNAPSHOT_MAGIC || input.readInt() != SNAPSHOT_VERSION) {
+                throw new IOException("Not a formatting cache snapshot: " + path);
+            }
+            int entries = input.readInt();
+            for (int i = 0; i < entries; i++) {
+                byte[] key = new byte[HASH_FUNCTION.bits() / Byte.SIZE];
+                input.readFully(key);
+                byte[] value = new byte[input.readInt()];
+                input.readFully(value);
+                cache.put(HashCode.fromBytes(key), new String(value, UTF_8));
+            }
+        }
+    }
+
+    /**
+     * Atomically replaces {@code path} with the current cache content.
+     */
+    public void save(Path path)
+            throws IOException
+    {
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            Map<HashCode, String> entries = ImmutableMap.copyOf(cache.asMap());
+            output.writeInt(SNAPSHOT_MAGIC);
+            output.writeInt(SNAPSHOT_VERSION);
+            output.writeInt(entries.size());
+            for (Map.Entry<HashCode, String> entry : entries.entrySet()) {
+                byte[] value = entry.getValue().getBytes(UTF_8);
+                output.write(entry.getKey().asBytes());
+                output.writeInt(value.length);
+                output.write(value);
+            }
+        }
+        Files.move(temporary, path, REPLACE_EXISTING, ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rocks.prestodb.query.formatter;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Remembers files known to be formatted, by modification time and content hash, so repeated
+ * runs over a large tree only read and format the files that changed. A file whose modification
+ * time changed but whose content did not is recognized by the hash without being formatted.
+ * <p>
+ * Entries are tied to the formatting options; an index saved with different options is ignored.
+ */
+public class FormattingIndex
+{
+    private static final int MAGIC = 0x50514649;
+    private static final int VERSION = 1;
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+    private final String options;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    public FormattingIndex(String options)
+    {
+        this.options = requireNonNull(options, "options is null");
+    }
+
+    public static HashCode hash(byte[] content)
+    {
+        return HASH_FUNCTION.hashBytes(content);
+    }
+
+    /**
+     * Tells whether {@code file} was formatted when last seen with the given modification time.
+     */
+    public boolean isFormatted(Path file, long lastModified)
+    {
+        Entry entry = entries.get(key(file));
+        return entry != null && entry.lastModified == lastModified;
+    }
+
+    /**
+     * Tells whether {@code file} was formatted when last seen with content of the given hash.
+     */
+    public boolean isFormatted(Path file, HashCode contentHash)
+    {
+        Entry entry = entries.get(key(file));
+        return entry != null && entry.contentHash.equals(contentHash);
+    }
+
+    public void setFormatted(Path file, long lastModified, HashCode contentHash)
+    {
+        entries.put(key(file), new Entry(lastModified, contentHash));
+    }
+
+    public void remove(Path file)
+    {
+        entries.remove(key(file));
+    }
+
+    public int size()
+    {
+        return entries.size();
+    }
+
+    private static String key(Path file)
+    {
+        return file.toAbsolutePath().normalize().toString();
+    }
+
+    /**
+     * Loads entries saved by {@link #save}; a missing file or one saved with other options is ignored.
+     */
+    public void load(Path path)
+            throws IOException
+    {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                throw new IOException("Not a formatting index: " + path);
+            }
+            if (!input.readUTF().equals(options)) {
+                return;
+            }
+            int count = input.readInt();
+            for (int i = 0; i < count; i++) {
+                String file = input.readUTF();
+                long lastModified = input.readLong();
+                byte[] hash = new byte[HASH_FUNCTION.bits() / Byte.SIZE];
+                input.readFully(hash);
+                entries.put(file, new Entry(lastModified, HashCode.fromBytes(hash)));
+            }
+        }
+    }
+
+    /**
+     * Atomically replaces {@code path} with the current index.
+     */
+    public void save(Path path)
+            throws IOException
+    {
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            Map<String, Entry> entries = ImmutableMap.copyOf(this.entries);
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeUTF(options);
+            output.writeInt(entries.size());
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                output.writeUTF(entry.getKey());
+                output.writeLong(entry.getValue().lastModified);
+                output.write(entry.getValue().contentHash.asBytes());
+            }
+        }
+        Files.move(temporary, path, REPLACE_EXISTING, ATOMIC_MOVE);
+    }
+
+    private static class Entry
+    {
+        private final long lastModified;
+        private final HashCode contentHash;
+
+        public Entry(long lastModified, HashCode contentHash)
+        {
+            this.lastModified = lastModified;
+            this.contentHash = requireNonNull(contentHash, "contentHash is null");
+        }
+    }
+}
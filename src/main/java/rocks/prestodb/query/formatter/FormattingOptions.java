@@ -0,0 +1,143 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rocks.prestodb.query.formatter;
+
+import com.google.common.base.MoreObjects.ToStringHelper;
+
+import java.util.Objects;
+import java.util.OptionalInt;
+
+import static com.google.common.base.MoreObjects.toStringHelper;
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Immutable set of options that influence the formatted output.
+ */
+public final class FormattingOptions
+{
+    public static final FormattingOptions DEFAULT = new FormattingOptions(OptionalInt.empty(), false, false, 0);
+
+    private final OptionalInt maxLineWidth;
+    private final boolean literalPlaceholders;
+    private final boolean compact;
+    private final int listItemsPerLine;
+
+    private FormattingOptions(OptionalInt maxLineWidth, boolean literalPlaceholders, boolean compact, int listItemsPerLine)
+    {
+        checkArgument(!(compact && maxLineWidth.isPresent()), "compact output has no line width");
+        checkArgument(listItemsPerLine >= 0, "listItemsPerLine is negative");
+        this.maxLineWidth = maxLineWidth;
+        this.literalPlaceholders = literalPlaceholders;
+        this.compact = compact;
+        this.listItemsPerLine = listItemsPerLine;
+    }
+
+    /**
+     * When present, lists and AND/OR chains are kept on one line if they fit in this many
+     * characters and broken otherwise. When absent, the fixed layout is used.
+     */
+    public OptionalInt getMaxLineWidth()
+    {
+        return maxLineWidth;
+    }
+
+    public FormattingOptions withMaxLineWidth(int maxLineWidth)
+    {
+        checkArgument(maxLineWidth > 0, "maxLineWidth must be positive");
+        return new FormattingOptions(OptionalInt.of(maxLineWidth), literalPlaceholders, compact, listItemsPerLine);
+    }
+
+    /**
+     * Whether literals are written as {@code ?} placeholders, and IN lists of literals as a
+     * single placeholder, so that statements differing only in constants are written the same.
+     */
+    public boolean isLiteralPlaceholders()
+    {
+        return literalPlaceholders;
+    }
+
+    public FormattingOptions withLiteralPlaceholders(boolean literalPlaceholders)
+    {
+        return new FormattingOptions(maxLineWidth, literalPlaceholders, compact, listItemsPerLine);
+    }
+
+    /**
+     * Whether statements are written on one line with only the whitespace needed to parse them
+     * back, for storage and transfer rather than reading.
+     */
+    public boolean isCompact()
+    {
+        return compact;
+    }
+
+    public FormattingOptions withCompact(boolean compact)
+    {
+        return new FormattingOptions(maxLineWidth, literalPlaceholders, compact, listItemsPerLine);
+    }
+
+    /**
+     * When positive, IN lists and VALUES made only of literals are written this many items to
+     * a line, and also wrapped where a line would exceed the maximum line width, instead of one
+     * item per line. Zero keeps one item per line.
+     */
+    public int getListItemsPerLine()
+    {
+        return listItemsPerLine;
+    }
+
+    public FormattingOptions withListItemsPerLine(int listItemsPerLine)
+    {
+        return new FormattingOptions(maxLineWidth, literalPlaceholders, compact, listItemsPerLine);
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        FormattingOptions that = (FormattingOptions) o;
+        return Objects.equals(maxLineWidth, that.maxLineWidth) &&
+                literalPlaceholders == that.literalPlaceholders &&
+                compact == that.compact &&
+                listItemsPerLine == that.listItemsPerLine;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Objects.hash(maxLineWidth, literalPlaceholders, compact, listItemsPerLine);
+    }
+
+    @Override
+    public String toString()
+    {
+        // also keys caches and indexes, so options left at their defaults since then are omitted
+        ToStringHelper helper = toStringHelper(this)
+                .add("maxLineWidth", maxLineWidth);
+        if (literalPlaceholders) {
+            helper.add("literalPlaceholders", true);
+        }
+        if (compact) {
+            helper.add("compact", true);
+        }
+        if (listItemsPerLine > 0) {
+            helper.add("listItemsPerLine", listItemsPerLine);
+        }
+        return helper.toString();
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rocks.prestodb.query.formatter;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.lang.String.format;
+
+/**
+ * Lock-free histogram of non-negative values with log-linear buckets, in the manner of
+ * HdrHistogram: values below 16 are counted exactly, larger ones in 8 buckets per power of two,
+ * so reported percentiles are within 12.5% of the recorded values. Recording is a few atomic
+ * additions and never allocates.
+ */
+public class Histogram
+{
+    private static final int EXACT_VALUES = 16;
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int FIRST_INEXACT_EXPONENT = 4;
+    private static final int BUCKETS = EXACT_VALUES + (Long.SIZE - 1 - FIRST_INEXACT_EXPONENT) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value)
+    {
+        checkArgument(value >= 0, "value is negative: %s", value);
+        counts.incrementAndGet(bucket(value));
+        count.increment();
+        sum.add(value);
+        long currentMax = max.get();
+        while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+            currentMax = max.get();
+        }
+    }
+
+    public long getCount()
+    {
+        return count.sum();
+    }
+
+    public long getMax()
+    {
+        return max.get();
+    }
+
+    public double getMean()
+    {
+        long count = getCount();
+        return count == 0 ? 0 : (double) sum.sum() / count;
+    }
+
+    /**
+     * Returns the highest value of the bucket holding the value at {@code percentile}, between
+     * 0 and 100, or 0 when nothing was recorded.
+     */
+    public long getValueAtPercentile(double percentile)
+    {
+        checkArgument(percentile >= 0 && percentile <= 100, "percentile must be between 0 and 100");
+        long total = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            total += counts.get(bucket);
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += counts.get(bucket);
+            if (seen >= rank) {
+                return Math.min(highestValue(bucket), getMax());
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Returns count, mean, median, 90th and 99th percentile and maximum as a JSON object.
+     */
+    public String toJson()
+    {
+        return format(Locale.ROOT, "{\"count\":%s,\"mean\":%.1f,\"p50\":%s,\"p90\":%s,\"p99\":%s,\"max\":%s}",
+                getCount(), getMean(), getValueAtPercentile(50), getValueAtPercentile(90), getValueAtPercentile(99), getMax());
+    }
+
+    static int bucket(long value)
+    {
+        if (value < EXACT_VALUES) {
+            return (int) value;
+        }
+        int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return EXACT_VALUES + (exponent - FIRST_INEXACT_EXPONENT) * SUB_BUCKETS + subBucket;
+    }
+
+    static long highestValue(int bucket)
+    {
+        if (bucket < EXACT_VALUES) {
+            return bucket;
+        }
+        int exponent = FIRST_INEXACT_EXPONENT + (bucket - EXACT_VALUES) / SUB_BUCKETS;
+        long subBucket = SUB_BUCKETS + (bucket - EXACT_VALUES) % SUB_BUCKETS;
+        long lowest = subBucket << (exponent - SUB_BUCKET_BITS);
+        return lowest + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+}
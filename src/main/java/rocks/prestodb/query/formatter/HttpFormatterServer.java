@@ -0,0 +1,253 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rocks.prestodb.query.formatter;
+
+import com.facebook.presto.sql.parser.ParsingException;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.lang.String.format;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Formatter listening for HTTP on a loopback port, for editors and services that would rather
+ * not speak the binary protocol of {@link FormatterServer}.
+ * <p>
+ * SQL text, possibly holding several statements, is POSTed in UTF-8 to {@link #PATH}. The
+ * response is the formatted SQL with status 200, the error with status 400 for SQL that does
+ * not parse and 413 for requests over the size limit, or status 503 when formatting did not
+ * start and complete within the request timeout.
+ * <p>
+ * Requests are handled on virtual threads when the JVM has them, so idle and slow clients cost
+ * no platform threads, and otherwise on a fixed pool. Statements are formatted, which is CPU
+ * bound, on a separate pool of {@code maxConcurrentFormats} threads that keep their formatter
+ * buffers between requests; requests wait for a free thread and for the result up to the
+ * request timeout. Formatting itself cannot be interrupted, so a request that times out still
+ * occupies its thread until the statement is formatted.
+ */
+public class HttpFormatterServer
+        implements Closeable
+{
+    public static final String PATH = "/v1/format";
+
+    private static final int FALLBACK_THREADS = 64;
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    private final HttpServer server;
+    private final ExecutorService requestExecutor;
+    private final boolean virtualThreads;
+    private final ExecutorService formatExecutor;
+    private final Function<String, String> formatter;
+    private final Semaphore formatPermits;
+    private final int maxRequestSize;
+    private final long timeoutNanos;
+    private final CountDownLatch closed = new CountDownLatch(1);
+
+    public HttpFormatterServer(int port, Function<String, String> formatter, int maxConcurrentFormats, int maxRequestSize, long timeout, TimeUnit unit)
+            throws IOException
+    {
+        checkArgument(maxConcurrentFormats > 0, "maxConcurrentFormats must be positive");
+        checkArgument(maxRequestSize > 0, "maxRequestSize must be positive");
+        checkArgument(timeout > 0, "timeout must be positive");
+        this.formatter = requireNonNull(formatter, "formatter is null");
+        // as many permits as format threads, so an admitted request never queues in the pool
+        this.formatPermits = new Semaphore(maxConcurrentFormats);
+        this.formatExecutor = Executors.newFixedThreadPool(maxConcurrentFormats, new ThreadFactoryBuilder()
+                .setNameFormat("formatter-format-%s")
+                .setDaemon(true)
+                .build());
+        this.maxRequestSize = maxRequestSize;
+        this.timeoutNanos = requireNonNull(unit, "unit is null").toNanos(timeout);
+        Optional<ExecutorService> virtualThreadExecutor = newVirtualThreadExecutor();
+        this.virtualThreads = virtualThreadExecutor.isPresent();
+        this.requestExecutor = virtualThreadExecutor.orElseGet(() -> Executors.newFixedThreadPool(FALLBACK_THREADS, new ThreadFactoryBuilder()
+                .setNameFormat("formatter-http-%s")
+                .setDaemon(true)
+                .build()));
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.setExecutor(requestExecutor);
+        server.createContext(PATH, this::handle);
+    }
+
+    /**
+     * Returns whether requests are handled on virtual threads.
+     */
+    public boolean isVirtualThreads()
+    {
+        return virtualThreads;
+    }
+
+    public int getPort()
+    {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Handles requests until the server is closed.
+     */
+    public void serve()
+            throws InterruptedException
+    {
+        server.start();
+        closed.await();
+    }
+
+    private void handle(HttpExchange exchange)
+            throws IOException
+    {
+        long start = System.nanoTime();
+        try {
+            if (!exchange.getRequestMethod().equals("POST")) {
+                exchange.getResponseHeaders().set("Allow", "POST");
+                respond(exchange, 405, "Only POST is supported");
+                return;
+            }
+            String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+            long length;
+            try {
+                // absent for chunked requests, whose size is checked while reading
+                length = contentLength == null ? 0 : Long.parseLong(contentLength);
+            }
+            catch (NumberFormatException e) {
+                respond(exchange, 400, "Invalid Content-Length: " + contentLength);
+                return;
+            }
+            String sql = length > maxRequestSize ? null : readRequest(exchange);
+            if (sql == null) {
+                respond(exchange, 413, "Request size must be at most " + maxRequestSize + " bytes");
+                return;
+            }
+            if (!formatPermits.tryAcquire(timeoutNanos - (System.nanoTime() - start), NANOSECONDS)) {
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                respond(exchange, 503, "Too many concurrent requests");
+                return;
+            }
+            Future<String> formatting;
+            try {
+                formatting = formatExecutor.submit(() -> {
+                    try {
+                        return StreamingStatementSplitter.formatStatements(sql, formatter);
+                    }
+                    finally {
+                        // held until formatting ends, even when the request gave up waiting
+                        formatPermits.release();
+                    }
+                });
+            }
+            catch (RuntimeException e) {
+                formatPermits.release();
+                respond(exchange, 500, String.valueOf(e.getMessage()));
+                return;
+            }
+            String formatted;
+            try {
+                formatted = formatting.get(timeoutNanos - (System.nanoTime() - start), NANOSECONDS);
+            }
+            catch (TimeoutException e) {
+                respond(exchange, 503, "Formatting did not complete within the request timeout");
+                return;
+            }
+            catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof ParsingException) {
+                    ParsingException parsingException = (ParsingException) cause;
+                    respond(exchange, 400, format("line %s:%s: %s", parsingException.getLineNumber(), parsingException.getColumnNumber(), parsingException.getErrorMessage()));
+                    return;
+                }
+                respond(exchange, 500, String.valueOf(cause.getMessage()));
+                return;
+            }
+            respond(exchange, 200, formatted);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Returns the request body, or null when it is larger than the limit.
+     */
+    private String readRequest(HttpExchange exchange)
+            throws IOException
+    {
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        byte[] buffer = new byte[READ_BUFFER_SIZE];
+        try (InputStream input = exchange.getRequestBody()) {
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                if (request.size() + read > maxRequestSize) {
+                    return null;
+                }
+                request.write(buffer, 0, read);
+            }
+        }
+        return new String(request.toByteArray(), UTF_8);
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body)
+            throws IOException
+    {
+        byte[] bytes = body.getBytes(UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream output = exchange.getResponseBody()) {
+            output.write(bytes);
+        }
+    }
+
+    private static Optional<ExecutorService> newVirtualThreadExecutor()
+    {
+        // looked up reflectively, as virtual threads came in Java 21 and this is compiled for Java 8
+        try {
+            return Optional.of((ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null));
+        }
+        catch (ReflectiveOperationException e) {
+            return Optional.empty();
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        server.stop(0);
+        requestExecutor.shutdownNow();
+        formatExecutor.shutdownNow();
+        closed.countDown();
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rocks.prestodb.query.formatter;
+
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+import static rocks.prestodb.query.formatter.StatementFormatter.indentString;
+
+/**
+ * Sink that fits the formatted text to a maximum line width, in the spirit of Wadler's
+ * and Oppen's pretty printers. Tokens are buffered as a flat document of text, lines and
+ * group markers and laid out in {@link #finish}: a group is kept on one line when it fits,
+ * together with the text following it up to the next line, otherwise its own lines are
+ * broken and nested groups are decided on their own. Fill lines of a broken group are only
+ * broken where the next item does not fit, packing lists. Group widths are computed in a
+ * single pass up front, so the layout takes time linear in the number of tokens.
+ */
+final class LayoutOutput
+        extends SqlOutput
+{
+    private static final byte TEXT = 0;
+    private static final byte LINE = 1;
+    private static final byte BEGIN_GROUP = 2;
+    private static final byte END_GROUP = 3;
+    private static final byte FILL_LINE = 4;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final int maxLineWidth;
+    private final StringBuilder text = new StringBuilder();
+
+    private byte[] kinds = new byte[INITIAL_CAPACITY];
+    // text of TEXT tokens, flat rendering of LINE tokens
+    private String[] values = new String[INITIAL_CAPACITY];
+    private String[] brokenValues = new String[INITIAL_CAPACITY];
+    private int[] indents = new int[INITIAL_CAPACITY];
+    private int size;
+    private int openGroups;
+
+    // layout scratch, kept between calls to finish
+    private long[] widthBefore = new long[0];
+    private int[] hardBreaksBefore = new int[0];
+    private int[] groupEnds = new int[0];
+    private int[] openStack = new int[0];
+    private long[] widthToBreak = new long[0];
+
+    LayoutOutput(Appendable appendable, FormattingOptions options)
+    {
+        super(appendable, options);
+        checkArgument(options.getMaxLineWidth().isPresent(), "maxLineWidth is not set");
+        this.maxLineWidth = options.getMaxLineWidth().getAsInt();
+    }
+
+    @Override
+    public SqlOutput append(CharSequence value)
+    {
+        countAppended(value.length());
+        text.append(value);
+        return this;
+    }
+
+    @Override
+    public SqlOutput append(char value)
+    {
+        countAppended(1);
+        text.append(value);
+        return this;
+    }
+
+    @Override
+    public SqlOutput append(long value)
+    {
+        int length = text.length();
+        text.append(value);
+        countAppended(text.length() - length);
+        return this;
+    }
+
+    @Override
+    public SqlOutput beginGroup()
+    {
+        openGroups++;
+        add(BEGIN_GROUP, null, null, 0);
+        return this;
+    }
+
+    @Override
+    public SqlOutput endGroup()
+    {
+        checkState(openGroups > 0, "no open group");
+        openGroups--;
+        add(END_GROUP, null, null, 0);
+        return this;
+    }
+
+    @Override
+    public SqlOutput line(String flat, int indent, String broken)
+    {
+        add(LINE, flat, broken, indent);
+        return this;
+    }
+
+    @Override
+    public SqlOutput softLine(String flat, int indent, String broken)
+    {
+        return line(flat, indent, broken);
+    }
+
+    @Override
+    public SqlOutput fillLine(String flat, int indent, String broken)
+    {
+        add(FILL_LINE, flat, broken, indent);
+        return this;
+    }
+
+    private void add(byte kind, String value, String brokenValue, int indent)
+    {
+        flushText();
+        ensureCapacity();
+        kinds[size] = kind;
+        values[size] = value;
+        brokenValues[size] = brokenValue;
+        indents[size] = indent;
+        size++;
+    }
+
+    private void flushText()
+    {
+        if (text.length() == 0) {
+            return;
+        }
+        ensureCapacity();
+        kinds[size] = TEXT;
+        values[size] = text.toString();
+        size++;
+        text.setLength(0);
+    }
+
+    private void ensureCapacity()
+    {
+        if (size == kinds.length) {
+            int capacity = size * 2;
+            kinds = Arrays.copyOf(kinds, capacity);
+            values = Arrays.copyOf(values, capacity);
+            brokenValues = Arrays.copyOf(brokenValues, capacity);
+            indents = Arrays.copyOf(indents, capacity);
+        }
+    }
+
+    @Override
+    public void finish()
+    {
+        checkState(openGroups == 0, "%s groups not closed", openGroups);
+        flushText();
+
+        if (widthBefore.length < size + 1) {
+            widthBefore = new long[kinds.length + 1];
+            hardBreaksBefore = new int[kinds.length + 1];
+            groupEnds = new int[kinds.length];
+            openStack = new int[kinds.length];
+            widthToBreak = new long[kinds.length + 1];
+        }
+
+        // flat width of everything before each token, and number of tokens with a hard line break
+        int open = 0;
+        for (int i = 0; i < size; i++) {
+            String value = values[i];
+            boolean hardBreak = kinds[i] == TEXT && value.indexOf('\n') >= 0;
+            widthBefore[i + 1] = widthBefore[i] + (value == null ? 0 : value.length());
+            hardBreaksBefore[i + 1] = hardBreaksBefore[i] + (hardBreak ? 1 : 0);
+            if (kinds[i] == BEGIN_GROUP) {
+                openStack[open++] = i;
+            }
+            else if (kinds[i] == END_GROUP) {
+                groupEnds[openStack[--open]] = i;
+            }
+        }
+
+        // flat width from each token up to the next place where the text can be broken
+        widthToBreak[size] = 0;
+        for (int i = size - 1; i >= 0; i--) {
+            if (kinds[i] == LINE || kinds[i] == FILL_LINE) {
+                widthToBreak[i] = 0;
+            }
+            else if (kinds[i] == TEXT) {
+                int newline = values[i].indexOf('\n');
+                widthToBreak[i] = newline >= 0 ? newline : values[i].length() + widthToBreak[i + 1];
+            }
+            else {
+                widthToBreak[i] = widthToBreak[i + 1];
+            }
+        }
+
+        int column = 0;
+        // tokens before this index belong to a group laid out flat
+        int flatUntil = -1;
+        for (int i = 0; i < size; i++) {
+            switch (kinds[i]) {
+                case TEXT:
+                    String value = values[i];
+                    write(value);
+                    int newline = value.lastIndexOf('\n');
+                    column = newline >= 0 ? value.length() - newline - 1 : column + value.length();
+                    break;
+                case LINE:
+                case FILL_LINE:
+                    // a fill line is kept flat when the text up to the next line still fits
+                    if (i < flatUntil || (kinds[i] == FILL_LINE && column + values[i].length() + widthToBreak[i + 1] <= maxLineWidth)) {
+                        write(values[i]);
+                        column += values[i].length();
+                    }
+                    else {
+                        String indent = indentString(indents[i]);
+                        // chained calls would go back into the buffer
+                        write('\n');
+                        write(indent);
+                        write(brokenValues[i]);
+                        column = indent.length() + brokenValues[i].length();
+                    }
+                    break;
+                case BEGIN_GROUP:
+                    int end = groupEnds[i];
+                    if (i > flatUntil && hardBreaksBefore[end] == hardBreaksBefore[i]
+                            && column + widthBefore[end] - widthBefore[i] + widthToBreak[end + 1] <= maxLineWidth) {
+                        flatUntil = end;
+                    }
+                    break;
+                case END_GROUP:
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown token kind: " + kinds[i]);
+            }
+        }
+        Arrays.fill(values, 0, size, null);
+        Arrays.fill(brokenValues, 0, size, null);
+        size = 0;
+    }
+}
@@ -13,54 +13,409 @@
  */
 package rocks.prestodb.query.formatter;
 
+import com.facebook.presto.sql.parser.ParsingException;
 import com.facebook.presto.sql.parser.SqlParser;
-import com.facebook.presto.sql.parser.StatementSplitter;
 import com.facebook.presto.sql.tree.Statement;
-import com.google.common.collect.ImmutableSet;
+import io.airlift.airline.Arguments;
+import io.airlift.airline.Command;
+import io.airlift.airline.HelpOption;
+import io.airlift.airline.Option;
 
-import java.io.BufferedReader;
+import javax.inject.Inject;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
-import static rocks.prestodb.query.formatter.StatementFormatter.formatSql;
+import static io.airlift.airline.SingleCommand.singleCommand;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
+@Command(name = "presto-query-formatter", description = "Formats Presto SQL statements read from standard input, files or a local TCP port")
 public class Main
 {
     private static final SqlParser SQL_PARSER = new SqlParser();
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int OUTPUT_BUFFER_SIZE = 1024 * 1024;
+    private static final long MAX_OUTPUT_DELAY_MILLIS = 100;
+
+    @Inject
+    public HelpOption helpOption;
+
+    @Option(name = "--max-line-width", title = "columns", description = "Keep lists and conditions on one line when they fit in this width, 0 for the fixed layout (default: 0)")
+    public int maxLineWidth;
+
+    @Option(name = "--compact", description = "Write every statement on one line with minimal whitespace, for storage rather than reading")
+    public boolean compact;
+
+    @Option(name = "--list-items-per-line", title = "items", description = "Write IN lists and VALUES of literals this many items to a line, wrapping earlier at --max-line-width, 0 for one per line (default: 0)")
+    public int listItemsPerLine;
+
+    @Arguments(title = "path", description = "SQL files, directories or glob patterns to format in place instead of reading standard input")
+    public List<String> paths = new ArrayList<>();
+
+    @Option(name = "--check", description = "With paths, only list files that are not formatted, failing if there are any")
+    public boolean check;
+
+    @Option(name = "--index", title = "file", description = "With paths, file remembering formatted files so that unchanged ones are skipped on the next run")
+    public String index;
+
+    @Option(name = "--input", title = "file", description = "UTF-8 file to format instead of standard input; read through a memory mapping")
+    public String input;
+
+    @Option(name = "--output", title = "file", description = "File to write formatted SQL to instead of standard output")
+    public String output;
+
+    @Option(name = "--fingerprint", description = "Instead of formatting, count statements per fingerprint, ignoring constants, and list the most frequent")
+    public boolean fingerprint;
+
+    @Option(name = "--fingerprint-capacity", title = "fingerprints", description = "Number of distinct fingerprints tracked when counting; counts of less frequent ones may be approximate (default: 10000)")
+    public int fingerprintCapacity = 10_000;
+
+    @Option(name = "--batch", description = "Format statements in parallel, writing them in input order")
+    public boolean batch;
+
+    @Option(name = "--threads", title = "threads", description = "Number of formatting threads in batch mode (default: number of processors)")
+    public int threads = Runtime.getRuntime().availableProcessors();
+
+    @Option(name = "--reorder-window", title = "statements", description = "Maximum number of statements in flight in batch mode (default: 1024)")
+    public int reorderWindow = 1024;
+
+    @Option(name = "--verify", title = "mode", description = "Check that formatted SQL parses to the original statement, failing on a mismatch with ALWAYS and counting it otherwise [ALWAYS, SAMPLED, OFF, ASYNC] (default: ALWAYS)")
+    public Verifier.Mode verificationMode = Verifier.Mode.ALWAYS;
+
+    @Option(name = "--verify-sample-rate", title = "fraction", description = "Fraction of statements checked in SAMPLED verification mode (default: 0.01)")
+    public double verificationSampleRate = 0.01;
+
+    @Option(name = "--metrics", description = "Print parse, format and verification statistics as JSON to standard error at exit, and publish them through JMX")
+    public boolean printMetrics;
+
+    @Option(name = "--profile", description = "Print calls, time and characters written per node type, slowest first, to standard error at exit")
+    public boolean profile;
+
+    @Option(name = "--server", description = "Keep running and format SQL sent to a local TCP port")
+    public boolean server;
+
+    @Option(name = "--http", description = "In server mode, accept SQL POSTed over HTTP to /v1/format instead of the binary protocol")
+    public boolean http;
+
+    @Option(name = "--max-concurrent-formats", title = "formats", description = "Number of statements formatted at a time in HTTP server mode (default: number of processors)")
+    public int maxConcurrentFormats = Runtime.getRuntime().availableProcessors();
+
+    @Option(name = "--max-connections", title = "connections", description = "Number of connections served at a time in server mode without --http (default: 64)")
+    public int maxConnections = 64;
+
+    @Option(name = "--max-request-size", title = "bytes", description = "Largest request accepted in server mode (default: 1048576)")
+    public int maxRequestSize = 1024 * 1024;
+
+    @Option(name = "--request-timeout", title = "milliseconds", description = "Longest an HTTP request waits for its turn and its formatting (default: 10000)")
+    public long requestTimeoutMillis = 10_000;
+
+    @Option(name = "--port", title = "port", description = "Loopback port to listen on in server mode (default: 8765)")
+    public int port = 8765;
+
+    @Option(name = "--cache-size", title = "statements", description = "Number of formatted statements to cache, 0 to disable (default: 0)")
+    public long cacheSize;
+
+    @Option(name = "--cache-snapshot", title = "file", description = "File to load the cache from on start and save it to on exit")
+    public String cacheSnapshot;
+
+    private FormattingOptions options = FormattingOptions.DEFAULT;
+    private QueryFormatter queryFormatter;
+    private Optional<FormatterProfile> formatterProfile = Optional.empty();
+    private Verifier verifier;
+    private Optional<FormattingCache> cache = Optional.empty();
+    private FormatterMetrics metrics;
+    private IntConsumer expressionDepthRecorder;
 
     public static void main(String[] args)
+            throws Exception
+    {
+        Main main = singleCommand(Main.class).parse(args);
+        if (main.helpOption.showHelpIfRequested()) {
+            return;
+        }
+        System.exit(main.run() ? 0 : 1);
+    }
+
+    boolean run()
+            throws Exception
+    {
+        if (maxLineWidth > 0) {
+            options = options.withMaxLineWidth(maxLineWidth);
+        }
+        if (compact) {
+            checkArgument(maxLineWidth == 0, "--compact and --max-line-width are exclusive");
+            options = options.withCompact(true);
+        }
+        if (profile) {
+            formatterProfile = Optional.of(new FormatterProfile());
+        }
+        checkArgument(!http || server, "--http requires --server");
+        if (listItemsPerLine > 0) {
+            options = options.withListItemsPerLine(listItemsPerLine);
+        }
+        queryFormatter = new QueryFormatter(options, formatterProfile);
+        verifier = new Verifier(SQL_PARSER, verificationMode, verificationSampleRate);
+        if (cacheSize > 0) {
+            cache = Optional.of(new FormattingCache(cacheSize, options.toString()));
+            if (cacheSnapshot != null) {
+                cache.get().load(Paths.get(cacheSnapshot));
+            }
+        }
+        metrics = new FormatterMetrics(verifier, cache);
+        expressionDepthRecorder = metrics.getExpressionDepth()::record;
+        if (printMetrics || server) {
+            metrics.export();
+        }
+        boolean success = true;
+        try {
+            if (!paths.isEmpty()) {
+                success = formatFiles();
+            }
+            else if (fingerprint) {
+                success = countFingerprints();
+            }
+            else if (server) {
+                serve();
+            }
+            else {
+                Writer writer = Channels.newWriter(openOutput(), UTF_8.newEncoder(), OUTPUT_BUFFER_SIZE);
+                try (BufferedStatementWriter output = new BufferedStatementWriter(writer, OUTPUT_BUFFER_SIZE, MAX_OUTPUT_DELAY_MILLIS, MILLISECONDS)) {
+                    format(output);
+                }
+            }
+        }
+        finally {
+            verifier.close();
+            if (cache.isPresent()) {
+                System.err.println(cache.get().getSummary());
+                saveCacheSnapshot();
+            }
+        }
+
+        if (verificationMode != Verifier.Mode.ALWAYS || verifier.getMismatches() > 0) {
+            System.err.println(verifier.getSummary());
+        }
+        if (printMetrics) {
+            System.err.println(metrics.getSummary());
+        }
+        formatterProfile.ifPresent(profile -> System.err.print(profile.getReport()));
+        return success && verifier.getMismatches() == 0;
+    }
+
+    private boolean formatFiles()
             throws IOException
     {
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(System.in))) {
-            StringBuilder buffer = new StringBuilder();
-            while (reader.ready()) {
-                buffer.append(reader.readLine() + "\n");
-                String sql = buffer.toString();
-                StatementSplitter splitter = new StatementSplitter(sql, ImmutableSet.of(";", "\\G"));
-                for (StatementSplitter.Statement split : splitter.getCompleteStatements()) {
-                    format(split.statement());
+        Optional<FormattingIndex> formattingIndex = Optional.empty();
+        if (index != null) {
+            formattingIndex = Optional.of(new FormattingIndex(options.toString()));
+            formattingIndex.get().load(Paths.get(index));
+        }
+
+        checkArgument(threads > 0, "threads must be positive");
+        BulkFormatter.Mode mode = check ? BulkFormatter.Mode.CHECK : BulkFormatter.Mode.FORMAT;
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        BulkFormatter.Result result;
+        try {
+            CanonicalChecker checker = new CanonicalChecker(SQL_PARSER::createStatement, options);
+            result = new BulkFormatter(sql -> format(sql, true), checker, mode, formattingIndex, pool).formatFiles(BulkFormatter.findFiles(paths));
+        }
+        finally {
+            pool.shutdownNow();
+        }
+
+        for (Path file : result.getChanged()) {
+            if (check) {
+                System.out.println(file + ": not formatted at " + result.getDifferences().get(file));
+            }
+            else {
+                System.out.println(file);
+            }
+        }
+        result.getFailed().forEach((file, message) -> System.err.println(file + ": " + message));
+        System.err.println(result.getSummary(mode));
+        if (formattingIndex.isPresent()) {
+            formattingIndex.get().save(Paths.get(index));
+        }
+        return result.getFailed().isEmpty() && (!check || result.getChanged().isEmpty());
+    }
+
+    private boolean countFingerprints()
+            throws IOException
+    {
+        FingerprintAggregator aggregator = new FingerprintAggregator(fingerprintCapacity);
+        AtomicLong failed = new AtomicLong();
+        split(sql -> {
+            Statement statement;
+            try {
+                statement = SQL_PARSER.createStatement(sql);
+            }
+            catch (ParsingException e) {
+                failed.incrementAndGet();
+                return;
+            }
+            aggregator.add(Fingerprinter.fingerprint(statement), () -> Fingerprinter.normalize(statement));
+        });
+
+        try (Writer writer = Channels.newWriter(openOutput(), UTF_8.newEncoder(), OUTPUT_BUFFER_SIZE)) {
+            for (FingerprintAggregator.Entry entry : aggregator.getEntries()) {
+                writer.write(String.format("-- %s statements, fingerprint %s", entry.getCount(), entry.getFingerprint()));
+                if (entry.getError() > 0) {
+                    writer.write(String.format(", over-counted by at most %s", entry.getError()));
                 }
+                writer.write("\n" + entry.getNormalized() + ";\n\n");
+            }
+        }
+        System.err.println(String.format("Statements: %s, fingerprints: %s, failed to parse: %s", aggregator.getStatements(), aggregator.getEntries().size(), failed.get()));
+        return failed.get() == 0;
+    }
+
+    private WritableByteChannel openOutput()
+            throws IOException
+    {
+        if (output == null) {
+            return new FileOutputStream(FileDescriptor.out).getChannel();
+        }
+        return FileChannel.open(Paths.get(output), CREATE, TRUNCATE_EXISTING, WRITE);
+    }
 
-                // replace buffer with trailing partial statement
-                buffer = new StringBuilder();
-                String partial = splitter.getPartialStatement();
-                if (!partial.isEmpty()) {
-                    buffer.append(partial).append('\n');
+    private void format(Consumer<String> output)
+            throws IOException
+    {
+        if (!batch) {
+            split(sql -> output.accept(format(sql)));
+            return;
+        }
+
+        checkArgument(threads > 0, "threads must be positive");
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try (BatchFormatter batchFormatter = new BatchFormatter(pool, reorderWindow, this::format, output)) {
+            split(batchFormatter);
+        }
+        finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private void serve()
+            throws IOException, InterruptedException
+    {
+        // load the parser grammar and formatter classes before the first client arrives
+        format("SELECT 1");
+        if (cache.isPresent()) {
+            // the server only stops when the process is terminated
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    saveCacheSnapshot();
+                }
+                catch (IOException e) {
+                    System.err.println("Failed to save cache snapshot: " + e.getMessage());
                 }
+            }));
+        }
+        if (http) {
+            try (HttpFormatterServer httpServer = new HttpFormatterServer(port, this::format, maxConcurrentFormats, maxRequestSize, requestTimeoutMillis, MILLISECONDS)) {
+                System.err.println(String.format("Listening for HTTP on port %s%s", httpServer.getPort(), httpServer.isVirtualThreads() ? " using virtual threads" : ""));
+                httpServer.serve();
             }
-            String sql = buffer.toString();
+            return;
+        }
+        try (FormatterServer formatterServer = new FormatterServer(port, this::format, maxConnections, maxRequestSize)) {
+            System.err.println("Listening on port " + formatterServer.getPort());
+            formatterServer.serve();
+        }
+    }
+
+    private void saveCacheSnapshot()
+            throws IOException
+    {
+        if (cacheSnapshot != null) {
+            cache.get().save(Paths.get(cacheSnapshot));
+        }
+    }
+
+    private void split(Consumer<String> statementConsumer)
+            throws IOException
+    {
+        if (input != null) {
+            MappedStatementReader.split(Paths.get(input), statementConsumer);
+            return;
+        }
+        try (Reader reader = new InputStreamReader(System.in, UTF_8)) {
+            StreamingStatementSplitter splitter = new StreamingStatementSplitter(statementConsumer);
+            char[] buffer = new char[BUFFER_SIZE];
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                splitter.feed(buffer, 0, read);
+            }
+            String sql = splitter.getPartialStatement();
             if (!sql.isEmpty()) {
-                format(sql);
+                statementConsumer.accept(sql);
             }
         }
     }
 
-    private static void format(String sql)
+    private String format(String sql)
+    {
+        return format(sql, false);
+    }
+
+    /**
+     * Fails when the formatted statement parses to a different statement in {@code ALWAYS}
+     * verification mode, so that different SQL is never written; sampled and asynchronous checks
+     * only count mismatches.
+     *
+     * @param failOnMismatch whether to fail on a mismatch in every verification mode; files must
+     * not be rewritten then
+     */
+    private String format(String sql, boolean failOnMismatch)
     {
+        if (cache.isPresent()) {
+            Optional<String> cached = cache.get().getIfPresent(sql);
+            if (cached.isPresent()) {
+                return cached.get();
+            }
+        }
+        return formatStatement(sql, failOnMismatch);
+    }
+
+    private String formatStatement(String sql, boolean failOnMismatch)
+    {
+        long start = System.nanoTime();
         Statement statement = SQL_PARSER.createStatement(sql);
-        String formattedSql = formatSql(statement);
-        checkState(statement.equals(SQL_PARSER.createStatement(formattedSql)), "Formatted SQL is different than original");
-        System.out.println(formattedSql + ";");
+        long parsed = System.nanoTime();
+        String formattedSql = queryFormatter.format(statement, expressionDepthRecorder);
+        metrics.getFormatNanos().record(System.nanoTime() - parsed);
+        metrics.getParseNanos().record(parsed - start);
+        metrics.getStatementChars().record(sql.length());
+        boolean verified = verifier.verify(statement, formattedSql);
+        checkState(verified || (verificationMode != Verifier.Mode.ALWAYS && !failOnMismatch), "Formatted SQL is different than original");
+        String result = formattedSql + ";";
+        if (verified) {
+            // a mismatch is never served from the cache, so it is checked and reported every time
+            cache.ifPresent(formattingCache -> formattingCache.put(sql, result));
+        }
+        return result;
     }
 }
@@ -0,0 +1,96 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rocks.prestodb.query.formatter;
+
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Path;
+import java.util.function.Consumer;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * Splits the statements of a UTF-8 SQL file by mapping it into memory region by region and
+ * decoding each region straight into a reusable char buffer that feeds a
+ * {@link StreamingStatementSplitter}. Files of any size are read without holding more than one
+ * statement on the heap.
+ */
+public final class MappedStatementReader
+{
+    private static final long DEFAULT_REGION_SIZE = 256 * 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private MappedStatementReader()
+    {
+    }
+
+    public static void split(Path path, Consumer<String> statementConsumer)
+            throws IOException
+    {
+        split(path, DEFAULT_REGION_SIZE, statementConsumer);
+    }
+
+    static void split(Path path, long regionSize, Consumer<String> statementConsumer)
+            throws IOException
+    {
+        checkArgument(regionSize >= 4, "regionSize must hold at least one UTF-8 character");
+        StreamingStatementSplitter splitter = new StreamingStatementSplitter(statementConsumer);
+        CharsetDecoder decoder = UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+
+        try (FileChannel channel = FileChannel.open(path, READ)) {
+            long size = channel.size();
+            long position = 0;
+            while (position < size) {
+                MappedByteBuffer bytes = channel.map(READ_ONLY, position, Math.min(regionSize, size - position));
+                boolean endOfInput = position + bytes.capacity() == size;
+                CoderResult result;
+                do {
+                    result = decoder.decode(bytes, chars, endOfInput);
+                    feed(splitter, chars);
+                }
+                while (result.isOverflow());
+                if (endOfInput) {
+                    while (decoder.flush(chars).isOverflow()) {
+                        feed(splitter, chars);
+                    }
+                    feed(splitter, chars);
+                }
+                // bytes of a character split across regions are mapped again with the next region
+                position += bytes.position();
+            }
+        }
+
+        String sql = splitter.getPartialStatement();
+        if (!sql.isEmpty()) {
+            statementConsumer.accept(sql);
+        }
+    }
+
+    private static void feed(StreamingStatementSplitter splitter, CharBuffer chars)
+    {
+        splitter.feed(chars.array(), 0, chars.position());
+        chars.clear();
+    }
+}
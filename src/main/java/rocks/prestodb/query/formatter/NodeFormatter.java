@@ -0,0 +1,26 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rocks.prestodb.query.formatter;
+
+import com.facebook.presto.sql.tree.Node;
+
+/**
+ * Formats statements and expressions that are already parsed, such as those an event listener
+ * receives from a Presto coordinator or trees built in code. Nothing is parsed, so formatting
+ * costs only the walk over the tree. Implementations can be shared between threads.
+ */
+public interface NodeFormatter
+{
+    String format(Node node);
+}
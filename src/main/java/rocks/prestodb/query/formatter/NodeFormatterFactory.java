@@ -0,0 +1,25 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rocks.prestodb.query.formatter;
+
+/**
+ * Service provider interface for {@link NodeFormatter}s. The formatter registers an
+ * implementation in {@code META-INF/services}, so integrations can find it with
+ * {@link java.util.ServiceLoader} and depend only on this interface, {@link NodeFormatter}
+ * and {@link FormattingOptions}.
+ */
+public interface NodeFormatterFactory
+{
+    NodeFormatter create(FormattingOptions options);
+}
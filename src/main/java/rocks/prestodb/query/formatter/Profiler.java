@@ -0,0 +1,99 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rocks.prestodb.query.formatter;
+
+import com.facebook.presto.sql.tree.Node;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkState;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Records visits of one statement formatter and its expression formatter into a
+ * {@link FormatterProfile}. Keeps the entered visits on its own stack, so it is used by one
+ * thread at a time.
+ */
+final class Profiler
+{
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final FormatterProfile profile;
+    private final SqlOutput out;
+    private final Map<Class<?>, FormatterProfile.Entry> nodeEntries = new IdentityHashMap<>();
+
+    // entered visits: their entry, start and the time and characters of the visits nested in them
+    private FormatterProfile.Entry[] entries = new FormatterProfile.Entry[INITIAL_CAPACITY];
+    private long[] startNanos = new long[INITIAL_CAPACITY];
+    private long[] startChars = new long[INITIAL_CAPACITY];
+    private long[] nestedNanos = new long[INITIAL_CAPACITY];
+    private long[] nestedChars = new long[INITIAL_CAPACITY];
+    private int size;
+
+    Profiler(FormatterProfile profile, SqlOutput out)
+    {
+        this.profile = requireNonNull(profile, "profile is null");
+        this.out = requireNonNull(out, "out is null");
+    }
+
+    void enter(Node node)
+    {
+        FormatterProfile.Entry entry = nodeEntries.get(node.getClass());
+        if (entry == null) {
+            entry = profile.entry(node.getClass().getSimpleName());
+            nodeEntries.put(node.getClass(), entry);
+        }
+        enter(entry);
+    }
+
+    void enter(String name)
+    {
+        enter(profile.entry(name));
+    }
+
+    private void enter(FormatterProfile.Entry entry)
+    {
+        if (size == entries.length) {
+            int capacity = size * 2;
+            entries = Arrays.copyOf(entries, capacity);
+            startNanos = Arrays.copyOf(startNanos, capacity);
+            startChars = Arrays.copyOf(startChars, capacity);
+            nestedNanos = Arrays.copyOf(nestedNanos, capacity);
+            nestedChars = Arrays.copyOf(nestedChars, capacity);
+        }
+        entries[size] = entry;
+        startChars[size] = out.getAppendedChars();
+        nestedNanos[size] = 0;
+        nestedChars[size] = 0;
+        startNanos[size] = System.nanoTime();
+        size++;
+    }
+
+    void exit()
+    {
+        long endNanos = System.nanoTime();
+        checkState(size > 0, "no entered visit");
+        size--;
+        long totalNanos = endNanos - startNanos[size];
+        long totalChars = out.getAppendedChars() - startChars[size];
+        entries[size].record(totalNanos - nestedNanos[size], totalNanos, totalChars - nestedChars[size]);
+        entries[size] = null;
+        if (size > 0) {
+            nestedNanos[size - 1] += totalNanos;
+            nestedChars[size - 1] += totalChars;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rocks.prestodb.query.formatter;
+
+import com.facebook.presto.sql.tree.Node;
+
+import java.util.Optional;
+import java.util.function.IntConsumer;
+
+import static com.google.common.base.MoreObjects.toStringHelper;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Formats statements and expressions with fixed {@link FormattingOptions}. Instances are
+ * immutable and can be shared between threads. Every thread formats into its own buffer
+ * with its own visitors, both reused between calls, so formatting allocates little besides
+ * the result.
+ */
+public final class QueryFormatter
+        implements NodeFormatter
+{
+    // buffers grown beyond this by a large statement are not kept
+    private static final int MAX_RETAINED_BUFFER_SIZE = 1024 * 1024;
+
+    private final FormattingOptions options;
+    private final Optional<FormatterProfile> profile;
+    private final ThreadLocal<Scratch> scratch;
+
+    public QueryFormatter(FormattingOptions options)
+    {
+        this(options, Optional.empty());
+    }
+
+    /**
+     * Creates a formatter that records the visits of its formatters on every thread into
+     * {@code profile}, when present.
+     */
+    public QueryFormatter(FormattingOptions options, Optional<FormatterProfile> profile)
+    {
+        this.options = requireNonNull(options, "options is null");
+        this.profile = requireNonNull(profile, "profile is null");
+        this.scratch = ThreadLocal.withInitial(() -> new Scratch(options, profile));
+    }
+
+    public FormattingOptions getOptions()
+    {
+        return options;
+    }
+
+    @Override
+    public String format(Node node)
+    {
+        return format(node, depth -> { });
+    }
+
+    /**
+     * Formats {@code node} and passes the deepest nesting of expressions within it, counting
+     * those in subqueries, to {@code expressionDepth}.
+     */
+    public String format(Node node, IntConsumer expressionDepth)
+    {
+        requireNonNull(node, "node is null");
+        requireNonNull(expressionDepth, "expressionDepth is null");
+        Scratch scratch = this.scratch.get();
+        boolean reusable = false;
+        try {
+            String formatted = scratch.format(node);
+            expressionDepth.accept(scratch.formatter.getExpressionFormatter().getMaxDepth());
+            reusable = scratch.buffer.capacity() <= MAX_RETAINED_BUFFER_SIZE;
+            return formatted;
+        }
+        finally {
+            if (!reusable) {
+                // after any failure, a StackOverflowError included, the output and the visitors
+                // may hold a partial statement
+                this.scratch.remove();
+            }
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return toStringHelper(this)
+                .add("options", options)
+                .add("profiled", profile.isPresent())
+                .toString();
+    }
+
+    private static class Scratch
+    {
+        private final StringBuilder buffer = new StringBuilder();
+        private final SqlOutput out;
+        private final StatementFormatter.Formatter formatter;
+
+        public Scratch(FormattingOptions options, Optional<FormatterProfile> profile)
+        {
+            out = SqlOutput.create(buffer, options);
+            formatter = new StatementFormatter.Formatter(out, Optional.empty());
+            profile.ifPresent(formatter::enableProfiling);
+        }
+
+        public String format(Node node)
+        {
+            buffer.setLength(0);
+            formatter.getExpressionFormatter().resetMaxDepth();
+            formatter.process(node, 0);
+            out.finish();
+            return buffer.toString();
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rocks.prestodb.query.formatter;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import static java.util.Objects.requireNonNull;
+import static rocks.prestodb.query.formatter.StatementFormatter.indentString;
+
+/**
+ * Sink shared by statement and expression formatters. Every token is written
+ * straight into the underlying {@link Appendable}, so the formatted text is
+ * built exactly once regardless of the depth of the tree.
+ * <p>
+ * Formatters also describe where lines may be broken, using groups and lines. This
+ * sink lays them out in the fixed layout, {@link LayoutOutput} fits them to a width and
+ * {@link CompactOutput} writes everything on one line.
+ */
+class SqlOutput
+{
+    private final Appendable appendable;
+    private final FormattingOptions options;
+    private long appendedChars;
+
+    SqlOutput(Appendable appendable)
+    {
+        this(appendable, FormattingOptions.DEFAULT);
+    }
+
+    SqlOutput(Appendable appendable, FormattingOptions options)
+    {
+        this.appendable = requireNonNull(appendable, "appendable is null");
+        this.options = requireNonNull(options, "options is null");
+    }
+
+    static SqlOutput create(Appendable appendable, FormattingOptions options)
+    {
+        if (options.isCompact()) {
+            return new CompactOutput(appendable, options);
+        }
+        if (options.getMaxLineWidth().isPresent()) {
+            return new LayoutOutput(appendable, options);
+        }
+        return new SqlOutput(appendable, options);
+    }
+
+    /**
+     * Options of the output, also read by formatters for the options that change what is written.
+     */
+    public FormattingOptions getOptions()
+    {
+        return options;
+    }
+
+    /**
+     * Number of characters appended by formatters so far, before any layout is applied.
+     */
+    public long getAppendedChars()
+    {
+        return appendedChars;
+    }
+
+    protected void countAppended(int chars)
+    {
+        appendedChars += chars;
+    }
+
+    public SqlOutput append(CharSequence value)
+    {
+        countAppended(value.length());
+        write(value);
+        return this;
+    }
+
+    public SqlOutput append(char value)
+    {
+        countAppended(1);
+        write(value);
+        return this;
+    }
+
+    /**
+     * Appends the decimal digits of {@code value}, without creating a string when writing
+     * into a {@link StringBuilder}.
+     */
+    public SqlOutput append(long value)
+    {
+        if (!(appendable instanceof StringBuilder)) {
+            return append(Long.toString(value));
+        }
+        StringBuilder builder = (StringBuilder) appendable;
+        int length = builder.length();
+        builder.append(value);
+        countAppended(builder.length() - length);
+        return this;
+    }
+
+    public SqlOutput append(Object value)
+    {
+        return append(String.valueOf(value));
+    }
+
+    public SqlOutput indent(int indent)
+    {
+        return append(indentString(indent));
+    }
+
+    /**
+     * Starts a group of lines that are either all broken or all kept flat.
+     */
+    public SqlOutput beginGroup()
+    {
+        return this;
+    }
+
+    public SqlOutput endGroup()
+    {
+        return this;
+    }
+
+    /**
+     * Line that is broken in the fixed layout: a new line at {@code indent} followed by
+     * {@code broken}, or {@code flat} when the enclosing group fits.
+     */
+    public SqlOutput line(String flat, int indent, String broken)
+    {
+        return append('\n')
+                .indent(indent)
+                .append(broken);
+    }
+
+    /**
+     * Line that is kept flat in the fixed layout and only broken when the enclosing group
+     * does not fit.
+     */
+    public SqlOutput softLine(String flat, int indent, String broken)
+    {
+        return append(flat);
+    }
+
+    /**
+     * Line between items of a list that is broken only when the next item does not fit in
+     * the line width. Kept flat in the fixed layout.
+     */
+    public SqlOutput fillLine(String flat, int indent, String broken)
+    {
+        return append(flat);
+    }
+
+    /**
+     * Writes anything still buffered; called once the whole tree has been visited.
+     */
+    public void finish()
+    {
+    }
+
+    /**
+     * Writes laid out text to the underlying {@link Appendable}.
+     */
+    protected final void write(CharSequence value)
+    {
+        try {
+            appendable.append(value);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    protected final void write(char value)
+    {
+        try {
+            appendable.append(value);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -78,6 +78,7 @@ import com.facebook.presto.sql.tree.ShowTables;
 import com.facebook.presto.sql.tree.SingleColumn;
 import com.facebook.presto.sql.tree.StartTransaction;
 import com.facebook.presto.sql.tree.Table;
+import com.facebook.presto.sql.tree.TableElement;
 import com.facebook.presto.sql.tree.TableSubquery;
 import com.facebook.presto.sql.tree.TransactionAccessMode;
 import com.facebook.presto.sql.tree.TransactionMode;
@@ -91,24 +92,28 @@ import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableSortedMap;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.util.regex.Pattern;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.collect.Iterables.getOnlyElement;
+import static java.util.Objects.requireNonNull;
 import static java.util.stream.Collectors.joining;
-import static rocks.prestodb.query.formatter.ExpressionFormatter.formatExpression;
-import static rocks.prestodb.query.formatter.ExpressionFormatter.formatGroupBy;
-import static rocks.prestodb.query.formatter.ExpressionFormatter.formatSortItems;
 import static rocks.prestodb.query.formatter.ExpressionFormatter.formatStringLiteral;
 
 public final class StatementFormatter
 {
     private static final String INDENT = "   ";
-    private static final Pattern NAME_PATTERN = Pattern.compile("[a-z_][a-z0-9_]*");
+    private static final String[] INDENTS = new String[32];
+
+    static {
+        for (int i = 0; i < INDENTS.length; i++) {
+            INDENTS[i] = Strings.repeat(INDENT, i);
+        }
+    }
 
     private StatementFormatter()
     {
@@ -127,20 +132,119 @@ public final class StatementFormatter
     public static String formatSql(Node root, Optional<List<Expression>> parameters, int indent)
     {
         StringBuilder builder = new StringBuilder();
-        new Formatter(builder, parameters).process(root, indent);
+        formatSql(root, parameters, indent, builder);
         return builder.toString();
     }
 
-    private static class Formatter
+    public static void formatSql(Node root, Appendable appendable)
+    {
+        formatSql(root, Optional.empty(), 0, appendable);
+    }
+
+    public static void formatSql(Node root, Optional<List<Expression>> parameters, int indent, Appendable appendable)
+    {
+        formatSql(root, parameters, indent, FormattingOptions.DEFAULT, appendable);
+    }
+
+    public static String formatSql(Node root, FormattingOptions options)
+    {
+        StringBuilder builder = new StringBuilder();
+        formatSql(root, Optional.empty(), 0, options, builder);
+        return builder.toString();
+    }
+
+    public static void formatSql(Node root, Optional<List<Expression>> parameters, int indent, FormattingOptions options, Appendable appendable)
+    {
+        SqlOutput out = SqlOutput.create(appendable, options);
+        formatSql(root, parameters, indent, out);
+        out.finish();
+    }
+
+    static void formatSql(Node root, Optional<List<Expression>> parameters, int indent, SqlOutput out)
+    {
+        new Formatter(out, parameters).process(root, indent);
+    }
+
+    /**
+     * Writes statements into one sink. Expressions are written by a single expression formatter
+     * paired with this instance, which in turn writes subqueries back through this instance, so
+     * a statement is formatted in one traversal however deeply its subqueries nest.
+     */
+    static class Formatter
             extends AstVisitor<Void, Integer>
     {
-        private final StringBuilder builder;
+        private static final int INITIAL_WORK_CAPACITY = 16;
+
+        private final SqlOutput builder;
         private final Optional<List<Expression>> parameters;
+        private final ExpressionFormatter.Formatter expressionFormatter;
+        private ExpressionFormatter.Formatter groupByFormatter;
+        // records visits when profiling
+        private Profiler profiler;
+
+        // work stack of visitJoin
+        private Join[] joinNodes = new Join[INITIAL_WORK_CAPACITY];
+        private byte[] joinStates = new byte[INITIAL_WORK_CAPACITY];
+        private int joinSize;
+
+        public Formatter(SqlOutput builder, Optional<List<Expression>> parameters)
+        {
+            this.builder = requireNonNull(builder, "builder is null");
+            this.parameters = requireNonNull(parameters, "parameters is null");
+            this.expressionFormatter = new ExpressionFormatter.Formatter(builder, parameters, this);
+        }
+
+        Formatter(SqlOutput builder, Optional<List<Expression>> parameters, ExpressionFormatter.Formatter expressionFormatter)
+        {
+            this.builder = requireNonNull(builder, "builder is null");
+            this.parameters = requireNonNull(parameters, "parameters is null");
+            this.expressionFormatter = requireNonNull(expressionFormatter, "expressionFormatter is null");
+        }
+
+        ExpressionFormatter.Formatter getExpressionFormatter()
+        {
+            return expressionFormatter;
+        }
+
+        /**
+         * Records the visits of this formatter and its expression formatter into {@code profile}.
+         */
+        void enableProfiling(FormatterProfile profile)
+        {
+            profiler = new Profiler(profile, builder);
+            expressionFormatter.setProfiler(profiler);
+            if (groupByFormatter != null) {
+                groupByFormatter.setProfiler(profiler);
+            }
+        }
 
-        public Formatter(StringBuilder builder, Optional<List<Expression>> parameters)
+        private ExpressionFormatter.Formatter groupByFormatter()
         {
-            this.builder = builder;
-            this.parameters = parameters;
+            // GROUP BY elements are written without parameter values
+            if (!parameters.isPresent()) {
+                return expressionFormatter;
+            }
+            if (groupByFormatter == null) {
+                groupByFormatter = new ExpressionFormatter.Formatter(builder, Optional.empty());
+                groupByFormatter.setProfiler(profiler);
+            }
+            return groupByFormatter;
+        }
+
+        @Override
+        public Void process(Node node, Integer indent)
+        {
+            // a root expression is recorded by the expression formatter
+            if (profiler == null || node instanceof Expression) {
+                return super.process(node, indent);
+            }
+            profiler.enter(node);
+            try {
+                return super.process(node, indent);
+            }
+            finally {
+                profiler.exit();
+            }
         }
 
         @Override
@@ -153,7 +257,7 @@ public final class StatementFormatter
         protected Void visitExpression(Expression node, Integer indent)
         {
             checkArgument(indent == 0, "visitExpression should only be called at root");
-            builder.append(formatExpression(node, parameters, indent));
+            expressionFormatter.formatExpression(node, indent);
             return null;
         }
 
@@ -190,8 +294,8 @@ public final class StatementFormatter
             builder.append(node.getName());
             List<Expression> parameters = node.getParameters();
             if (!parameters.isEmpty()) {
-                builder.append(" USING ");
-                Joiner.on(", ").appendTo(builder, parameters);
+                builder.append(" USING ")
+                        .append(Joiner.on(", ").join(parameters));
             }
             return null;
         }
@@ -239,8 +343,9 @@ public final class StatementFormatter
             processRelation(node.getQueryBody(), indent);
 
             if (node.getOrderBy().isPresent()) {
-                append(indent, "ORDER BY " + formatSortItems(node.getOrderBy().get().getSortItems(), parameters, indent))
-                        .append('\n');
+                append(indent, "ORDER BY ");
+                expressionFormatter.formatSortItems(node.getOrderBy().get().getSortItems(), indent);
+                builder.append('\n');
             }
 
             if (node.getLimit().isPresent()) {
@@ -266,23 +371,27 @@ public final class StatementFormatter
             builder.append('\n');
 
             if (node.getWhere().isPresent()) {
-                append(indent, "WHERE " + formatExpression(node.getWhere().get(), parameters, indent))
-                        .append('\n');
+                append(indent, "WHERE ");
+                expressionFormatter.formatExpression(node.getWhere().get(), indent);
+                builder.append('\n');
             }
 
             if (node.getGroupBy().isPresent()) {
-                append(indent, "GROUP BY " + (node.getGroupBy().get().isDistinct() ? " DISTINCT " : "") + formatGroupBy(node.getGroupBy().get()
-                        .getGroupingElements(), indent)).append('\n');
+                append(indent, "GROUP BY " + (node.getGroupBy().get().isDistinct() ? " DISTINCT " : ""));
+                groupByFormatter().formatGroupBy(node.getGroupBy().get().getGroupingElements(), indent);
+                builder.append('\n');
             }
 
             if (node.getHaving().isPresent()) {
-                append(indent, "HAVING " + formatExpression(node.getHaving().get(), parameters, indent))
-                        .append('\n');
+                append(indent, "HAVING ");
+                expressionFormatter.formatExpression(node.getHaving().get(), indent);
+                builder.append('\n');
             }
 
             if (node.getOrderBy().isPresent()) {
-                append(indent, "ORDER BY " + formatSortItems(node.getOrderBy().get().getSortItems(), parameters, indent))
-                        .append('\n');
+                append(indent, "ORDER BY ");
+                expressionFormatter.formatSortItems(node.getOrderBy().get().getSortItems(), indent);
+                builder.append('\n');
             }
 
             if (node.getLimit().isPresent()) {
@@ -301,15 +410,15 @@ public final class StatementFormatter
             }
 
             if (node.getSelectItems().size() > 1) {
+                builder.beginGroup();
                 boolean first = true;
                 for (SelectItem item : node.getSelectItems()) {
-                    builder.append("\n")
-                            .append(indentString(indent))
-                            .append(first ? "  " : ", ");
+                    builder.line(first ? " " : ", ", indent, first ? "  " : ", ");
 
                     process(item, indent);
                     first = false;
                 }
+                builder.endGroup();
             }
             else {
                 builder.append(' ');
@@ -324,7 +433,7 @@ public final class StatementFormatter
         @Override
         protected Void visitSingleColumn(SingleColumn node, Integer indent)
         {
-            builder.append(formatExpression(node.getExpression(), parameters, indent));
+            expressionFormatter.formatExpression(node.getExpression(), indent);
             if (node.getAlias().isPresent()) {
                 builder.append(' ')
                         .append('"')
@@ -346,7 +455,7 @@ public final class StatementFormatter
         @Override
         protected Void visitTable(Table node, Integer indent)
         {
-            builder.append(formatName(node.getName()));
+            appendName(node.getName());
 
             return null;
         }
@@ -354,27 +463,67 @@ public final class StatementFormatter
         @Override
         protected Void visitJoin(Join node, Integer indent)
         {
-            JoinCriteria criteria = node.getCriteria().orElse(null);
-            String type = node.getType().toString();
-            if (criteria instanceof NaturalJoin) {
-                type = "NATURAL " + type;
-            }
-
-            if (node.getType() != Join.Type.IMPLICIT) {
-                builder.append('(');
+            // joins nested in joins are walked with a work stack, so that a long chain of joins
+            // does not overflow the thread stack
+            int base = joinSize;
+            pushJoin(node);
+            while (joinSize > base) {
+                int top = joinSize - 1;
+                Join join = joinNodes[top];
+                byte state = joinStates[top]++;
+                if (state == 0) {
+                    if (join.getType() != Join.Type.IMPLICIT) {
+                        builder.append('(');
+                    }
+                    formatJoinOperand(join.getLeft(), indent);
+                }
+                else if (state == 1) {
+                    builder.append('\n');
+                    if (join.getType() == Join.Type.IMPLICIT) {
+                        append(indent, ", ");
+                    }
+                    else {
+                        String type = join.getType().toString();
+                        if (join.getCriteria().orElse(null) instanceof NaturalJoin) {
+                            type = "NATURAL " + type;
+                        }
+                        append(indent, type).append(" JOIN ");
+                    }
+                    formatJoinOperand(join.getRight(), indent);
+                }
+                else {
+                    appendJoinCriteria(join, indent);
+                    joinSize--;
+                    joinNodes[joinSize] = null;
+                }
             }
-            process(node.getLeft(), indent);
+            return null;
+        }
 
-            builder.append('\n');
-            if (node.getType() == Join.Type.IMPLICIT) {
-                append(indent, ", ");
+        private void formatJoinOperand(Relation relation, int indent)
+        {
+            if (relation instanceof Join) {
+                pushJoin((Join) relation);
             }
             else {
-                append(indent, type).append(" JOIN ");
+                process(relation, indent);
             }
+        }
 
-            process(node.getRight(), indent);
+        private void pushJoin(Join join)
+        {
+            if (joinSize == joinNodes.length) {
+                joinNodes = Arrays.copyOf(joinNodes, joinSize * 2);
+                joinStates = Arrays.copyOf(joinStates, joinSize * 2);
+            }
+            joinNodes[joinSize] = join;
+            joinStates[joinSize] = 0;
+            joinSize++;
+        }
 
+        private void appendJoinCriteria(Join node, int indent)
+        {
+            JoinCriteria criteria = node.getCriteria().orElse(null);
             if (node.getType() != Join.Type.CROSS && node.getType() != Join.Type.IMPLICIT) {
                 if (criteria instanceof JoinUsing) {
                     JoinUsing using = (JoinUsing) criteria;
@@ -384,8 +533,8 @@ public final class StatementFormatter
                 }
                 else if (criteria instanceof JoinOn) {
                     JoinOn on = (JoinOn) criteria;
-                    builder.append(" ON ")
-                            .append(formatExpression(on.getExpression(), parameters, indent));
+                    builder.append(" ON ");
+                    expressionFormatter.formatExpression(on.getExpression(), indent);
                 }
                 else if (!(criteria instanceof NaturalJoin)) {
                     throw new UnsupportedOperationException("unknown join criteria: " + criteria);
@@ -395,8 +544,6 @@ public final class StatementFormatter
             if (node.getType() != Join.Type.IMPLICIT) {
                 builder.append(")");
             }
-
-            return null;
         }
 
         @Override
@@ -404,8 +551,8 @@ public final class StatementFormatter
         {
             process(node.getRelation(), indent);
 
-            builder.append(' ')
-                    .append(formatName(node.getAlias()));
+            builder.append(' ');
+            appendName(node.getAlias());
             appendAliasColumns(builder, node.getColumnNames());
 
             return null;
@@ -430,14 +577,24 @@ public final class StatementFormatter
         {
             builder.append(" VALUES ");
 
-            boolean first = true;
+            // rows of single literals are packed several to a line when configured
+            int rowsPerLine = builder.getOptions().getListItemsPerLine();
+            if (rowsPerLine == 0 || !ExpressionFormatter.Formatter.isConstantList(node.getRows())) {
+                rowsPerLine = 1;
+            }
+            int count = 0;
             for (Expression row : node.getRows()) {
-                builder.append("\n")
-                        .append(indentString(indent))
-                        .append(first ? "  " : ", ");
+                if (count % rowsPerLine == 0) {
+                    builder.append("\n")
+                            .indent(indent)
+                            .append(count == 0 ? "  " : ", ");
+                }
+                else {
+                    builder.fillLine(", ", indent, ", ");
+                }
 
-                builder.append(formatExpression(row, parameters, indent));
-                first = false;
+                expressionFormatter.formatExpression(row, indent);
+                count++;
             }
             builder.append('\n');
 
@@ -500,7 +657,7 @@ public final class StatementFormatter
                 processRelation(relations.next(), indent);
 
                 if (relations.hasNext()) {
-                    builder.append(indentString(indent));
+                    builder.indent(indent);
                     builder.append("INTERSECT ");
                     if (!node.isDistinct()) {
                         builder.append("ALL ");
@@ -562,9 +719,9 @@ public final class StatementFormatter
             }
 
             if (!options.isEmpty()) {
-                builder.append("(");
-                Joiner.on(", ").appendTo(builder, options);
-                builder.append(")");
+                builder.append("(")
+                        .append(Joiner.on(", ").join(options))
+                        .append(")");
             }
 
             builder.append("\n");
@@ -623,12 +780,12 @@ public final class StatementFormatter
         protected Void visitShowCreate(ShowCreate node, Integer context)
         {
             if (node.getType() == ShowCreate.Type.TABLE) {
-                builder.append("SHOW CREATE TABLE ")
-                        .append(formatName(node.getName()));
+                builder.append("SHOW CREATE TABLE ");
+                appendName(node.getName());
             }
             else if (node.getType() == ShowCreate.Type.VIEW) {
-                builder.append("SHOW CREATE VIEW ")
-                        .append(formatName(node.getName()));
+                builder.append("SHOW CREATE VIEW ");
+                appendName(node.getName());
             }
 
             return null;
@@ -650,13 +807,13 @@ public final class StatementFormatter
                     .append(node.getTable());
 
             if (node.getWhere().isPresent()) {
-                builder.append(" WHERE ")
-                        .append(formatExpression(node.getWhere().get(), parameters, indent));
+                builder.append(" WHERE ");
+                expressionFormatter.formatExpression(node.getWhere().get(), indent);
             }
 
             if (!node.getOrderBy().isEmpty()) {
-                builder.append(" ORDER BY ")
-                        .append(formatSortItems(node.getOrderBy(), parameters, indent));
+                builder.append(" ORDER BY ");
+                expressionFormatter.formatSortItems(node.getOrderBy(), indent);
             }
 
             if (node.getLimit().isPresent()) {
@@ -690,8 +847,8 @@ public final class StatementFormatter
                     .append(node.getTable().getName());
 
             if (node.getWhere().isPresent()) {
-                builder.append(" WHERE ")
-                        .append(formatExpression(node.getWhere().get(), parameters, indent));
+                builder.append(" WHERE ");
+                expressionFormatter.formatExpression(node.getWhere().get(), indent);
             }
 
             return null;
@@ -706,7 +863,7 @@ public final class StatementFormatter
             }
             builder.append(node.getSchemaName());
 
-            appendTableProperties(builder, node.getProperties(), indent);
+            appendTableProperties(node.getProperties(), indent);
 
             return null;
         }
@@ -745,7 +902,7 @@ public final class StatementFormatter
             }
             builder.append(node.getName());
 
-            appendTableProperties(builder, node.getProperties(), indent);
+            appendTableProperties(node.getProperties(), indent);
 
             builder.append(" AS ");
             process(node.getQuery(), indent);
@@ -764,65 +921,101 @@ public final class StatementFormatter
             if (node.isNotExists()) {
                 builder.append("IF NOT EXISTS ");
             }
-            String tableName = formatName(node.getName());
-            builder.append(tableName).append(" (\n");
+            appendName(node.getName())
+                    .append(" (\n");
 
-            String elementIndent = indentString(indent + 1);
-            String columnList = node.getElements().stream()
-                    .map(element -> {
-                        if (element instanceof ColumnDefinition) {
-                            ColumnDefinition column = (ColumnDefinition) element;
-                            return elementIndent + formatName(column.getName()) + " " + column.getType();
-                        }
-                        if (element instanceof LikeClause) {
-                            LikeClause likeClause = (LikeClause) element;
-                            StringBuilder builder = new StringBuilder(elementIndent);
-                            builder.append("LIKE ")
-                                    .append(formatName(likeClause.getTableName()));
-                            if (likeClause.getPropertiesOption().isPresent()) {
-                                builder.append(" ")
-                                        .append(likeClause.getPropertiesOption().get().name())
-                                        .append(" PROPERTIES");
-                            }
-                            return builder.toString();
-                        }
-                        throw new UnsupportedOperationException("unknown table element: " + element);
-                    })
-                    .collect(joining(",\n"));
-            builder.append(columnList);
+            boolean first = true;
+            for (TableElement element : node.getElements()) {
+                if (!first) {
+                    builder.append(",\n");
+                }
+                builder.indent(indent + 1);
+                if (element instanceof ColumnDefinition) {
+                    ColumnDefinition column = (ColumnDefinition) element;
+                    appendName(column.getName())
+                            .append(" ")
+                            .append(column.getType());
+                }
+                else if (element instanceof LikeClause) {
+                    LikeClause likeClause = (LikeClause) element;
+                    builder.append("LIKE ");
+                    appendName(likeClause.getTableName());
+                    if (likeClause.getPropertiesOption().isPresent()) {
+                        builder.append(" ")
+                                .append(likeClause.getPropertiesOption().get().name())
+                                .append(" PROPERTIES");
+                    }
+                }
+                else {
+                    throw new UnsupportedOperationException("unknown table element: " + element);
+                }
+                first = false;
+            }
             builder.append("\n").append(")");
 
-            appendTableProperties(builder, node.getProperties(), indent);
+            appendTableProperties(node.getProperties(), indent);
 
             return null;
         }
 
-        private void appendTableProperties(StringBuilder builder, Map<String, Expression> properties, int indent)
+        private void appendTableProperties(Map<String, Expression> properties, int indent)
         {
             if (!properties.isEmpty()) {
                 builder.append("\nWITH (\n");
                 // Always output the table properties in sorted order
-                String propertyList = ImmutableSortedMap.copyOf(properties).entrySet().stream()
-                        .map(entry -> INDENT + formatName(entry.getKey()) + " = " + formatExpression(entry.getValue(), parameters, indent))
-                        .collect(joining(",\n"));
-                builder.append(propertyList);
+                boolean first = true;
+                for (Map.Entry<String, Expression> entry : ImmutableSortedMap.copyOf(properties).entrySet()) {
+                    if (!first) {
+                        builder.append(",\n");
+                    }
+                    builder.append(INDENT);
+                    appendName(entry.getKey())
+                            .append(" = ");
+                    expressionFormatter.formatExpression(entry.getValue(), indent);
+                    first = false;
+                }
                 builder.append("\n").append(")");
             }
         }
 
-        private static String formatName(String name)
+        private SqlOutput appendName(String name)
         {
-            if (NAME_PATTERN.matcher(name).matches()) {
-                return name;
+            if (isSimpleName(name)) {
+                return builder.append(name);
+            }
+            return builder.append('"')
+                    .append(name)
+                    .append('"');
+        }
+
+        /**
+         * Tells whether {@code name} matches {@code [a-z_][a-z0-9_]*} and can be written without quotes.
+         */
+        private static boolean isSimpleName(String name)
+        {
+            if (name.isEmpty()) {
+                return false;
+            }
+            for (int i = 0; i < name.length(); i++) {
+                char c = name.charAt(i);
+                if (!(c >= 'a' && c <= 'z' || c == '_' || i > 0 && c >= '0' && c <= '9')) {
+                    return false;
+                }
             }
-            return "\"" + name + "\"";
+            return true;
         }
 
-        private static String formatName(QualifiedName name)
+        private SqlOutput appendName(QualifiedName name)
         {
-            return name.getOriginalParts().stream()
-                    .map(Formatter::formatName)
-                    .collect(joining("."));
+            boolean first = true;
+            for (String part : name.getOriginalParts()) {
+                if (!first) {
+                    builder.append('.');
+                }
+                appendName(part);
+                first = false;
+            }
+            return builder;
         }
 
         @Override
@@ -897,8 +1090,8 @@ public final class StatementFormatter
         {
             builder.append("SET SESSION ")
                     .append(node.getName())
-                    .append(" = ")
-                    .append(formatExpression(node.getValue(), parameters, indent));
+                    .append(" = ");
+            expressionFormatter.formatExpression(node.getValue(), indent);
 
             return null;
         }
@@ -919,7 +1112,7 @@ public final class StatementFormatter
                 builder.append(node.getName().get())
                         .append(" => ");
             }
-            builder.append(formatExpression(node.getValue(), parameters, indent));
+            expressionFormatter.formatExpression(node.getValue(), indent);
 
             return null;
         }
@@ -1080,24 +1273,27 @@ public final class StatementFormatter
             }
         }
 
-        private StringBuilder append(int indent, String value)
+        private SqlOutput append(int indent, String value)
         {
-            return builder.append(indentString(indent))
+            return builder.indent(indent)
                     .append(value);
         }
     }
 
     public static String indentString(int indent)
     {
+        if (indent < INDENTS.length) {
+            return INDENTS[indent];
+        }
         return Strings.repeat(INDENT, indent);
     }
 
-    private static void appendAliasColumns(StringBuilder builder, List<String> columns)
+    private static void appendAliasColumns(SqlOutput builder, List<String> columns)
     {
         if ((columns != null) && (!columns.isEmpty())) {
-            builder.append(" (");
-            Joiner.on(", ").appendTo(builder, columns);
-            builder.append(')');
+            builder.append(" (")
+                    .append(Joiner.on(", ").join(columns))
+                    .append(')');
         }
     }
 }
@@ -0,0 +1,238 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rocks.prestodb.query.formatter;
+
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Splits SQL text into statements terminated by {@code ;} or {@code \G} while it is being read.
+ * <p>
+ * Unlike {@link com.facebook.presto.sql.parser.StatementSplitter}, which lexes the whole buffer
+ * it is given, this splitter keeps its lexer state (string literals, quoted identifiers and
+ * comments) between calls to {@link #feed}, so every input character is looked at exactly once.
+ * Complete statements are handed to the consumer as soon as their terminator arrives. Text
+ * that holds nothing but comments and whitespace is not a statement and is dropped.
+ */
+public class StreamingStatementSplitter
+{
+    private enum State
+    {
+        DEFAULT,
+        QUOTED,
+        QUOTED_MAYBE_END,
+        MAYBE_LINE_COMMENT,
+        LINE_COMMENT,
+        MAYBE_BLOCK_COMMENT,
+        BLOCK_COMMENT,
+        BLOCK_COMMENT_MAYBE_END,
+        MAYBE_DELIMITER
+    }
+
+    private final Consumer<String> statementConsumer;
+    private final StringBuilder statement = new StringBuilder();
+    private State state = State.DEFAULT;
+    private char quote;
+    // whether the current statement has text other than comments and whitespace
+    private boolean content;
+    private boolean comments;
+
+    public StreamingStatementSplitter(Consumer<String> statementConsumer)
+    {
+        this.statementConsumer = requireNonNull(statementConsumer, "statementConsumer is null");
+    }
+
+    /**
+     * Formats every statement of {@code sql}, including an unterminated last one, each followed
+     * by a new line.
+     */
+    public static String formatStatements(String sql, Function<String, String> formatter)
+    {
+        StringBuilder formatted = new StringBuilder(sql.length() + sql.length() / 4);
+        StreamingStatementSplitter splitter = new StreamingStatementSplitter(statement -> formatted.append(formatter.apply(statement)).append('\n'));
+        splitter.feed(sql);
+        String partial = splitter.getPartialStatement();
+        if (!partial.isEmpty()) {
+            formatted.append(formatter.apply(partial)).append('\n');
+        }
+        return formatted.toString();
+    }
+
+    /**
+     * Tells whether {@code sql} has any {@code --} or block comment outside of literals and
+     * quoted identifiers.
+     */
+    public static boolean containsComments(String sql)
+    {
+        StreamingStatementSplitter splitter = new StreamingStatementSplitter(statement -> { });
+        splitter.feed(sql);
+        return splitter.comments;
+    }
+
+    public void feed(CharSequence chunk)
+    {
+        for (int i = 0; i < chunk.length(); i++) {
+            process(chunk.charAt(i));
+        }
+    }
+
+    public void feed(char[] buffer, int offset, int length)
+    {
+        for (int i = offset; i < offset + length; i++) {
+            process(buffer[i]);
+        }
+    }
+
+    /**
+     * Returns the trailing text that is not terminated yet, or an empty string when it holds
+     * only comments.
+     */
+    public String getPartialStatement()
+    {
+        boolean pendingContent = state == State.MAYBE_LINE_COMMENT || state == State.MAYBE_BLOCK_COMMENT || state == State.MAYBE_DELIMITER;
+        if (!content && !pendingContent) {
+            return "";
+        }
+        StringBuilder partial = new StringBuilder(statement);
+        if (state == State.MAYBE_DELIMITER) {
+            partial.append('\\');
+        }
+        return partial.toString().trim();
+    }
+
+    private void process(char c)
+    {
+        switch (state) {
+            case DEFAULT:
+                processDefault(c);
+                return;
+            case QUOTED:
+                statement.append(c);
+                if (c == quote) {
+                    state = State.QUOTED_MAYBE_END;
+                }
+                return;
+            case QUOTED_MAYBE_END:
+                if (c == quote) {
+                    // doubled quote is an escaped quote
+                    statement.append(c);
+                    state = State.QUOTED;
+                    return;
+                }
+                state = State.DEFAULT;
+                processDefault(c);
+                return;
+            case MAYBE_LINE_COMMENT:
+                if (c == '-') {
+                    statement.append(c);
+                    state = State.LINE_COMMENT;
+                    comments = true;
+                    return;
+                }
+                content = true;
+                state = State.DEFAULT;
+                processDefault(c);
+                return;
+            case LINE_COMMENT:
+                statement.append(c);
+                if (c == '\n') {
+                    state = State.DEFAULT;
+                }
+                return;
+            case MAYBE_BLOCK_COMMENT:
+                if (c == '*') {
+                    statement.append(c);
+                    state = State.BLOCK_COMMENT;
+                    comments = true;
+                    return;
+                }
+                content = true;
+                state = State.DEFAULT;
+                processDefault(c);
+                return;
+            case BLOCK_COMMENT:
+                statement.append(c);
+                if (c == '*') {
+                    state = State.BLOCK_COMMENT_MAYBE_END;
+                }
+                return;
+            case BLOCK_COMMENT_MAYBE_END:
+                statement.append(c);
+                if (c == '/') {
+                    state = State.DEFAULT;
+                }
+                else if (c != '*') {
+                    state = State.BLOCK_COMMENT;
+                }
+                return;
+            case MAYBE_DELIMITER:
+                state = State.DEFAULT;
+                if (c == 'G') {
+                    emitStatement();
+                    return;
+                }
+                statement.append('\\');
+                content = true;
+                processDefault(c);
+                return;
+            default:
+                throw new IllegalStateException("Unknown state: " + state);
+        }
+    }
+
+    private void processDefault(char c)
+    {
+        switch (c) {
+            case ';':
+                emitStatement();
+                return;
+            case '\\':
+                state = State.MAYBE_DELIMITER;
+                return;
+            case '\'':
+            case '"':
+            case '`':
+                quote = c;
+                state = State.QUOTED;
+                break;
+            case '-':
+                state = State.MAYBE_LINE_COMMENT;
+                statement.append(c);
+                return;
+            case '/':
+                state = State.MAYBE_BLOCK_COMMENT;
+                statement.append(c);
+                return;
+            default:
+                break;
+        }
+        if (!Character.isWhitespace(c)) {
+            content = true;
+        }
+        statement.append(c);
+    }
+
+    private void emitStatement()
+    {
+        String sql = statement.toString().trim();
+        boolean hasContent = content;
+        statement.setLength(0);
+        content = false;
+        if (hasContent) {
+            statementConsumer.accept(sql);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rocks.prestodb.query.formatter;
+
+import com.facebook.presto.sql.parser.ParsingException;
+import com.facebook.presto.sql.parser.SqlParser;
+import com.facebook.presto.sql.tree.Statement;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.lang.String.format;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Checks that formatted SQL parses back to the original statement.
+ * <p>
+ * Re-parsing is as expensive as the initial parse, so the check can be sampled, switched off
+ * or moved to a background thread. Mismatches are counted and reported by {@link #getSummary()};
+ * callers decide whether a mismatch also fails the statement, as it does in {@link Mode#ALWAYS}.
+ */
+public class Verifier
+        implements AutoCloseable
+{
+    private static final int MAX_PENDING_VERIFICATIONS = 1024;
+
+    public enum Mode
+    {
+        ALWAYS,
+        SAMPLED,
+        OFF,
+        ASYNC
+    }
+
+    private final SqlParser sqlParser;
+    private final Mode mode;
+    private final double sampleRate;
+    private final ExecutorService executor;
+    private final Semaphore pendingVerifications = new Semaphore(MAX_PENDING_VERIFICATIONS);
+
+    private final AtomicLong verified = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong mismatches = new AtomicLong();
+    private final Histogram latency = new Histogram();
+
+    public Verifier(SqlParser sqlParser, Mode mode, double sampleRate)
+    {
+        checkArgument(sampleRate >= 0 && sampleRate <= 1, "sampleRate must be between 0 and 1");
+        this.sqlParser = requireNonNull(sqlParser, "sqlParser is null");
+        this.mode = requireNonNull(mode, "mode is null");
+        this.sampleRate = sampleRate;
+        this.executor = mode == Mode.ASYNC ? Executors.newSingleThreadExecutor() : null;
+    }
+
+    /**
+     * Returns false when {@code formattedSql} was checked and does not parse to {@code statement}.
+     * A skipped check, or one left to the background thread, counts as passed.
+     */
+    public boolean verify(Statement statement, String formattedSql)
+    {
+        switch (mode) {
+            case ALWAYS:
+                return check(statement, formattedSql);
+            case SAMPLED:
+                if (ThreadLocalRandom.current().nextDouble() < sampleRate) {
+                    return check(statement, formattedSql);
+                }
+                skipped.incrementAndGet();
+                return true;
+            case OFF:
+                skipped.incrementAndGet();
+                return true;
+            case ASYNC:
+                // never block the output; drop the check when the background thread falls behind
+                if (!pendingVerifications.tryAcquire()) {
+                    skipped.incrementAndGet();
+                    return true;
+                }
+                executor.execute(() -> {
+                    try {
+                        check(statement, formattedSql);
+                    }
+                    finally {
+                        pendingVerifications.release();
+                    }
+                });
+                return true;
+            default:
+                throw new UnsupportedOperationException("Unsupported verification mode: " + mode);
+        }
+    }
+
+    private boolean check(Statement statement, String formattedSql)
+    {
+        verified.incrementAndGet();
+        long start = System.nanoTime();
+        boolean matches;
+        try {
+            matches = statement.equals(sqlParser.createStatement(formattedSql));
+        }
+        catch (ParsingException e) {
+            matches = false;
+        }
+        latency.record(System.nanoTime() - start);
+        if (matches) {
+            return true;
+        }
+        mismatches.incrementAndGet();
+        System.err.println("Formatted SQL is different than original:\n" + formattedSql);
+        return false;
+    }
+
+    public long getVerified()
+    {
+        return verified.get();
+    }
+
+    public long getSkipped()
+    {
+        return skipped.get();
+    }
+
+    public long getMismatches()
+    {
+        return mismatches.get();
+    }
+
+    /**
+     * Nanoseconds taken by each check, including re-parsing.
+     */
+    public Histogram getLatency()
+    {
+        return latency;
+    }
+
+    public String getSummary()
+    {
+        return format("Verification (%s): %s verified, %s skipped, %s mismatches", mode, getVerified(), getSkipped(), getMismatches());
+    }
+
+    /**
+     * Waits for background verifications to complete.
+     */
+    @Override
+    public void close()
+    {
+        if (executor != null) {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
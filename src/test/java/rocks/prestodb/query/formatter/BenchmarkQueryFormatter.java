@@ -0,0 +1,363 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rocks.prestodb.query.formatter;
+
+import com.facebook.presto.sql.parser.SqlParser;
+import com.facebook.presto.sql.tree.AllColumns;
+import com.facebook.presto.sql.tree.ComparisonExpression;
+import com.facebook.presto.sql.tree.ComparisonExpressionType;
+import com.facebook.presto.sql.tree.Expression;
+import com.facebook.presto.sql.tree.Identifier;
+import com.facebook.presto.sql.tree.InListExpression;
+import com.facebook.presto.sql.tree.InPredicate;
+import com.facebook.presto.sql.tree.LogicalBinaryExpression;
+import com.facebook.presto.sql.tree.LongLiteral;
+import com.facebook.presto.sql.tree.QualifiedName;
+import com.facebook.presto.sql.tree.Statement;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.VerboseMode;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import static com.facebook.presto.sql.QueryUtil.selectList;
+import static com.facebook.presto.sql.QueryUtil.simpleQuery;
+import static com.facebook.presto.sql.QueryUtil.table;
+import static com.google.common.base.Preconditions.checkState;
+import static java.util.stream.Collectors.toList;
+import static rocks.prestodb.query.formatter.ExpressionFormatter.formatExpression;
+
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(2)
+@Warmup(iterations = 10, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 10, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@BenchmarkMode(Mode.AverageTime)
+public class BenchmarkQueryFormatter
+{
+    private static final SqlParser SQL_PARSER = new SqlParser();
+    private static final QueryFormatter QUERY_FORMATTER = new QueryFormatter(FormattingOptions.DEFAULT);
+    private static final QueryFormatter COMPACT_QUERY_FORMATTER = new QueryFormatter(FormattingOptions.DEFAULT.withCompact(true));
+
+    @Benchmark
+    public Statement parse(GeneratedQuery data)
+    {
+        return SQL_PARSER.createStatement(data.sql);
+    }
+
+    @Benchmark
+    public String formatStatement(GeneratedQuery data)
+    {
+        return StatementFormatter.formatSql(data.statement);
+    }
+
+    @Benchmark
+    public String formatDeepExpression(GeneratedQuery data)
+    {
+        return formatExpression(data.deepExpression, Optional.empty(), 0);
+    }
+
+    @Benchmark
+    public boolean roundTrip(GeneratedQuery data)
+    {
+        return isRoundTrip(data.sql);
+    }
+
+    @Benchmark
+    public String formatWideSelect(WideSelect data)
+    {
+        return StatementFormatter.formatSql(data.statement);
+    }
+
+    @Benchmark
+    public String formatLongPredicate(LongPredicate data)
+    {
+        return formatExpression(data.predicate, Optional.empty(), 0);
+    }
+
+    @Benchmark
+    public String formatLargeInList(LargeInList data)
+    {
+        return data.formatter.format(data.statement);
+    }
+
+    @Benchmark
+    public String formatNestedSubqueries(NestedSubqueries data)
+    {
+        return StatementFormatter.formatSql(data.statement);
+    }
+
+    @Benchmark
+    public int formatQueriesTxt(QueryCorpus data)
+    {
+        int length = 0;
+        for (Statement statement : data.statements) {
+            length += StatementFormatter.formatSql(statement).length();
+        }
+        return length;
+    }
+
+    @Benchmark
+    public int formatQueriesTxtWithQueryFormatter(QueryCorpus data)
+    {
+        int length = 0;
+        for (Statement statement : data.statements) {
+            length += QUERY_FORMATTER.format(statement).length();
+        }
+        return length;
+    }
+
+    @Benchmark
+    public int formatQueriesTxtCompact(QueryCorpus data)
+    {
+        int length = 0;
+        for (Statement statement : data.statements) {
+            length += COMPACT_QUERY_FORMATTER.format(statement).length();
+        }
+        return length;
+    }
+
+    @Benchmark
+    public int roundTripQueriesTxt(QueryCorpus data)
+    {
+        int verified = 0;
+        for (String sql : data.queries) {
+            if (isRoundTrip(sql)) {
+                verified++;
+            }
+        }
+        return verified;
+    }
+
+    private static boolean isRoundTrip(String sql)
+    {
+        Statement statement = SQL_PARSER.createStatement(sql);
+        return statement.equals(SQL_PARSER.createStatement(StatementFormatter.formatSql(statement)));
+    }
+
+    @State(Scope.Thread)
+    public static class GeneratedQuery
+    {
+        @Param({"1", "10", "100"})
+        private int size = 10;
+
+        @Param({"1", "10", "50"})
+        private int depth = 10;
+
+        private String sql;
+        private Statement statement;
+        private Expression deepExpression;
+
+        @Setup
+        public void setup()
+        {
+            sql = generateQuery(size, depth);
+            statement = SQL_PARSER.createStatement(sql);
+            deepExpression = SQL_PARSER.createExpression(generateExpression(0, depth));
+            checkState(isRoundTrip(sql), "generated query does not round trip");
+        }
+    }
+
+    /**
+     * Wide select list of aliased columns and string literals, dominated by identifier quoting,
+     * literal escaping and indentation rather than by tree depth.
+     */
+    @State(Scope.Thread)
+    public static class WideSelect
+    {
+        @Param({"10", "1000"})
+        private int columns = 1000;
+
+        private Statement statement;
+
+        @Setup
+        public void setup()
+        {
+            StringBuilder sql = new StringBuilder("SELECT ");
+            for (int column = 0; column < columns; column++) {
+                if (column > 0) {
+                    sql.append(", ");
+                }
+                sql.append(column % 2 == 0 ? "c" + column : "'value " + column + "'")
+                        .append(" AS alias_").append(column);
+            }
+            sql.append(" FROM some_schema.some_table");
+            statement = SQL_PARSER.createStatement(sql.toString());
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class LongPredicate
+    {
+        @Param({"1000", "10000"})
+        private int terms = 10000;
+
+        private Expression predicate;
+
+        @Setup
+        public void setup()
+        {
+            // built directly, as the parser itself does not handle chains this long;
+            // an OR of conjunctions of 100 terms each
+            Expression conjunction = null;
+            for (int term = 0; term < terms; term++) {
+                conjunction = term % 100 == 0 ? term(term) : new LogicalBinaryExpression(LogicalBinaryExpression.Type.AND, conjunction, term(term));
+                if (term % 100 == 99 || term == terms - 1) {
+                    predicate = predicate == null ? conjunction : new LogicalBinaryExpression(LogicalBinaryExpression.Type.OR, predicate, conjunction);
+                }
+            }
+        }
+
+        private static Expression term(int term)
+        {
+            return new ComparisonExpression(ComparisonExpressionType.EQUAL, new Identifier("c" + term), new LongLiteral(String.valueOf(term)));
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class LargeInList
+    {
+        @Param({"1000", "100000"})
+        private int items = 100000;
+
+        @Param({"0", "20"})
+        private int listItemsPerLine = 20;
+
+        private QueryFormatter formatter;
+        private Statement statement;
+
+        @Setup
+        public void setup()
+        {
+            formatter = new QueryFormatter(FormattingOptions.DEFAULT.withListItemsPerLine(listItemsPerLine));
+            List<Expression> values = new ArrayList<>(items);
+            for (int item = 0; item < items; item++) {
+                values.add(new LongLiteral(String.valueOf(item * 7919L)));
+            }
+            // built directly, as parsing a list this long dominates the setup
+            statement = simpleQuery(
+                    selectList(new AllColumns()),
+                    table(QualifiedName.of("t")),
+                    new InPredicate(new Identifier("a"), new InListExpression(values)));
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class NestedSubqueries
+    {
+        @Param({"10", "100"})
+        private int depth = 100;
+
+        private Statement statement;
+
+        @Setup
+        public void setup()
+        {
+            StringBuilder sql = new StringBuilder();
+            for (int level = 0; level < depth; level++) {
+                sql.append("SELECT a").append(level).append(" FROM t").append(level)
+                        .append(" WHERE b").append(level).append(" = c AND EXISTS (");
+            }
+            sql.append("SELECT 1");
+            for (int level = 0; level < depth; level++) {
+                sql.append(')');
+            }
+            statement = SQL_PARSER.createStatement(sql.toString());
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class QueryCorpus
+    {
+        private List<String> queries;
+        private List<Statement> statements;
+
+        @Setup
+        public void setup()
+        {
+            queries = new BufferedReader(new InputStreamReader(BenchmarkQueryFormatter.class.getResourceAsStream("/queries.txt"))).lines()
+                    .collect(toList());
+            statements = queries.stream()
+                    .map(SQL_PARSER::createStatement)
+                    .collect(toList());
+        }
+    }
+
+    /**
+     * Generates a query with {@code size} select items, each an expression nested {@code depth} levels deep.
+     */
+    static String generateQuery(int size, int depth)
+    {
+        StringBuilder sql = new StringBuilder("SELECT ");
+        for (int item = 0; item < size; item++) {
+            if (item > 0) {
+                sql.append(", ");
+            }
+            sql.append(generateExpression(item, depth));
+        }
+        return sql.append(" FROM t WHERE ")
+                .append(generateExpression(size, depth))
+                .toString();
+    }
+
+    static String generateExpression(int seed, int depth)
+    {
+        String expression = "c" + seed;
+        for (int level = 0; level < depth; level++) {
+            switch (level % 4) {
+                case 0:
+                    expression = "(" + expression + " + " + level + ")";
+                    break;
+                case 1:
+                    expression = "coalesce(" + expression + ", " + level + ")";
+                    break;
+                case 2:
+                    expression = "CASE WHEN " + expression + " > " + level + " THEN " + level + " END";
+                    break;
+                default:
+                    expression = "(" + expression + " > " + level + " AND c" + level + " IS NOT NULL OR c" + seed + " = 'x')";
+                    break;
+            }
+        }
+        return expression;
+    }
+
+    public static void main(String[] args)
+            throws RunnerException
+    {
+        Options options = new OptionsBuilder()
+                .verbosity(VerboseMode.NORMAL)
+                .include(".*" + BenchmarkQueryFormatter.class.getSimpleName() + ".*")
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rocks.prestodb.query.formatter;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestBatchFormatter
+{
+    private ExecutorService executor;
+
+    @After
+    public void tearDown()
+    {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testKeepsInputOrder()
+    {
+        executor = Executors.newFixedThreadPool(4);
+        List<String> output = new ArrayList<>();
+        List<String> expected = new ArrayList<>();
+        try (BatchFormatter formatter = new BatchFormatter(executor, 8, TestBatchFormatter::formatSlowlyFirst, output::add)) {
+            for (int i = 0; i < 20; i++) {
+                formatter.accept(String.valueOf(i));
+                expected.add("formatted " + i);
+            }
+        }
+        assertEquals(expected, output);
+    }
+
+    @Test
+    public void testReorderWindow()
+    {
+        executor = Executors.newFixedThreadPool(4);
+        int reorderWindow = 3;
+        AtomicInteger started = new AtomicInteger();
+        AtomicInteger written = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        try (BatchFormatter formatter = new BatchFormatter(
+                executor,
+                reorderWindow,
+                sql -> {
+                    int inFlight = started.incrementAndGet() - written.get();
+                    maxInFlight.accumulateAndGet(inFlight, Math::max);
+                    return formatSlowlyFirst(sql);
+                },
+                formatted -> written.incrementAndGet())) {
+            for (int i = 0; i < 20; i++) {
+                formatter.accept(String.valueOf(i));
+                // accepting returns only once the statement fits in the window
+                assertTrue(started.get() <= written.get() + reorderWindow);
+            }
+        }
+        assertEquals(20, written.get());
+        assertTrue(String.valueOf(maxInFlight.get()), maxInFlight.get() <= reorderWindow);
+    }
+
+    @Test
+    public void testFailureCancelsRemainingStatements()
+            throws InterruptedException
+    {
+        executor = Executors.newSingleThreadExecutor();
+        CountDownLatch release = new CountDownLatch(1);
+        Set<String> formatted = ConcurrentHashMap.newKeySet();
+        List<String> output = new ArrayList<>();
+        BatchFormatter formatter = new BatchFormatter(executor, 10, sql -> {
+            formatted.add(sql);
+            if (sql.equals("bad")) {
+                throw new IllegalArgumentException("cannot format: " + sql);
+            }
+            if (sql.equals("blocked")) {
+                // keeps the next statement queued until the failure is handled
+                awaitUninterruptibly(release);
+            }
+            return sql;
+        }, output::add);
+        for (String sql : ImmutableList.of("good", "bad", "blocked", "queued")) {
+            formatter.accept(sql);
+        }
+        try {
+            formatter.close();
+            fail("expected IllegalArgumentException");
+        }
+        catch (IllegalArgumentException e) {
+            assertEquals("cannot format: bad", e.getMessage());
+        }
+        release.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, SECONDS));
+
+        assertEquals(ImmutableList.of("good"), output);
+        assertFalse(formatted.contains("queued"));
+        // nothing is left to write
+        formatter.close();
+        assertEquals(ImmutableList.of("good"), output);
+    }
+
+    /**
+     * Formats earlier statements more slowly, so that they complete out of order.
+     */
+    private static String formatSlowlyFirst(String sql)
+    {
+        try {
+            MILLISECONDS.sleep(Math.max(0, 20 - Integer.parseInt(sql)));
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return "formatted " + sql;
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch)
+    {
+        try {
+            latch.await();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rocks.prestodb.query.formatter;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.util.concurrent.TimeUnit.DAYS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestBufferedStatementWriter
+{
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+
+    @Test
+    public void testWritesInOrder()
+            throws IOException
+    {
+        StringWriter writer = new StringWriter();
+        StringBuilder expected = new StringBuilder();
+        try (BufferedStatementWriter output = new BufferedStatementWriter(writer, 64, 1, DAYS)) {
+            for (int i = 0; i < 10_000; i++) {
+                String statement = "SELECT " + i + ";";
+                output.accept(statement);
+                expected.append(statement).append(LINE_SEPARATOR);
+            }
+            // larger than the block size
+            String statement = new String(new char[1000]).replace('\0', 'x');
+            output.accept(statement);
+            expected.append(statement).append(LINE_SEPARATOR);
+        }
+        assertEquals(expected.toString(), writer.toString());
+    }
+
+    @Test
+    public void testShrinksAfterOversizedStatement()
+            throws IOException
+    {
+        List<Integer> bufferSizes = new ArrayList<>();
+        StringWriter writer = new StringWriter()
+        {
+            @Override
+            public void write(char[] buffer, int offset, int length)
+            {
+                bufferSizes.add(buffer.length);
+                super.write(buffer, offset, length);
+            }
+        };
+        String oversized = new String(new char[1000]).replace('\0', 'x');
+        StringBuilder expected = new StringBuilder();
+        try (BufferedStatementWriter output = new BufferedStatementWriter(writer, 64, 1, DAYS)) {
+            output.accept(oversized);
+            expected.append(oversized).append(LINE_SEPARATOR);
+            for (int i = 0; i < 100; i++) {
+                String statement = "SELECT " + i + ";";
+                output.accept(statement);
+                expected.append(statement).append(LINE_SEPARATOR);
+            }
+        }
+        assertEquals(expected.toString(), writer.toString());
+        assertTrue(bufferSizes.toString(), bufferSizes.get(0) >= oversized.length());
+        assertEquals(64 + LINE_SEPARATOR.length(), (int) bufferSizes.get(bufferSizes.size() - 1));
+    }
+
+    @Test
+    public void testFlushesAfterDelay()
+            throws Exception
+    {
+        StringWriter writer = new StringWriter();
+        try (BufferedStatementWriter output = new BufferedStatementWriter(writer, 1024 * 1024, 10, MILLISECONDS)) {
+            output.accept("SELECT 1;");
+            long deadline = System.nanoTime() + MILLISECONDS.toNanos(10_000);
+            while (writer.getBuffer().length() == 0 && System.nanoTime() < deadline) {
+                MILLISECONDS.sleep(5);
+            }
+            assertEquals("SELECT 1;" + LINE_SEPARATOR, writer.toString());
+        }
+    }
+
+    @Test
+    public void testWriteFailure()
+            throws Exception
+    {
+        Writer failingWriter = new StringWriter()
+        {
+            @Override
+            public void write(char[] buffer, int offset, int length)
+            {
+                throw new UncheckedIOException(new IOException("disk full"));
+            }
+        };
+        BufferedStatementWriter output = new BufferedStatementWriter(failingWriter, 1, 1, DAYS);
+        try {
+            for (int i = 0; i < 1_000_000; i++) {
+                output.accept("SELECT 1;");
+                MILLISECONDS.sleep(1);
+            }
+            fail("expected failure to be reported");
+        }
+        catch (UncheckedIOException e) {
+            assertEquals("disk full", e.getCause().getMessage());
+        }
+    }
+}
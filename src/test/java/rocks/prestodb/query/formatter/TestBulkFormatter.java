@@ -0,0 +1,222 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rocks.prestodb.query.formatter;
+
+import com.facebook.presto.sql.parser.SqlParser;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import static com.google.common.base.Preconditions.checkState;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static rocks.prestodb.query.formatter.StatementFormatter.formatSql;
+
+public class TestBulkFormatter
+{
+    private static final SqlParser SQL_PARSER = new SqlParser();
+
+    private final AtomicInteger formatted = new AtomicInteger();
+    private final Function<String, String> formatter = sql -> {
+        formatted.incrementAndGet();
+        return formatSql(SQL_PARSER.createStatement(sql)) + ";";
+    };
+
+    private Path directory;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp()
+            throws IOException
+    {
+        directory = Files.createTempDirectory("bulk");
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown()
+            throws IOException
+    {
+        executor.shutdownNow();
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Test
+    public void testFormatInPlace()
+            throws IOException
+    {
+        Path first = write("first.sql", "select 1; select a from t");
+        Path second = write("nested/second.sql", canonical("select 2"));
+        Path broken = write("nested/broken.sql", "select from");
+
+        BulkFormatter.Result result = formatFiles(BulkFormatter.Mode.FORMAT, Optional.empty(), first, second, broken);
+        assertEquals(ImmutableList.of(first), result.getChanged());
+        assertEquals(1, result.getUnchanged());
+        assertEquals(ImmutableSet.of(broken), result.getFailed().keySet());
+        assertEquals(canonical("select 1") + canonical("select a from t"), read(first));
+        assertEquals("select from", read(broken));
+    }
+
+    @Test
+    public void testCommentsLeaveFileUntouched()
+            throws IOException
+    {
+        Path header = write("header.sql", "-- owned by reporting\nselect 1;\n");
+        Path inline = write("inline.sql", "select a /* the key */ from t");
+        Path trailing = write("trailing.sql", "select 1; -- done");
+        Path plain = write("plain.sql", "select '--', \"/*\" from t");
+
+        BulkFormatter.Result result = formatFiles(BulkFormatter.Mode.FORMAT, Optional.empty(), header, inline, trailing, plain);
+        assertEquals(ImmutableList.of(plain), result.getChanged());
+        assertEquals(ImmutableSet.of(header, inline, trailing), result.getFailed().keySet());
+        assertEquals("File contains comments, which formatting would remove", result.getFailed().get(header));
+        assertEquals("-- owned by reporting\nselect 1;\n", read(header));
+        assertEquals("select a /* the key */ from t", read(inline));
+        assertEquals("select 1; -- done", read(trailing));
+        // replaced through a temporary file, which is gone
+        try (Stream<Path> files = Files.list(directory)) {
+            assertEquals(4, files.count());
+        }
+    }
+
+    @Test
+    public void testMismatchLeavesFileUntouched()
+            throws IOException
+    {
+        // parenthesized AND operands are written as one chain, which parses to a different tree
+        String sql = "select x from t where a and (b and c);";
+        Path file = write("mismatch.sql", sql);
+        Path other = write("other.sql", "select 1");
+        Verifier verifier = new Verifier(SQL_PARSER, Verifier.Mode.ALWAYS, 1);
+        Function<String, String> verifyingFormatter = statement -> {
+            String formatted = formatSql(SQL_PARSER.createStatement(statement));
+            checkState(verifier.verify(SQL_PARSER.createStatement(statement), formatted), "Formatted SQL is different than original");
+            return formatted + ";";
+        };
+
+        FormattingIndex index = new FormattingIndex("");
+        BulkFormatter.Result result = new BulkFormatter(verifyingFormatter, new CanonicalChecker(SQL_PARSER::createStatement, FormattingOptions.DEFAULT), BulkFormatter.Mode.FORMAT, Optional.of(index), executor)
+                .formatFiles(ImmutableList.of(file, other));
+        assertEquals(ImmutableList.of(other), result.getChanged());
+        assertEquals(ImmutableMap.of(file, "Formatted SQL is different than original"), result.getFailed());
+        assertEquals(1, verifier.getMismatches());
+        assertEquals(sql, read(file));
+        assertEquals(1, index.size());
+    }
+
+    @Test
+    public void testCheck()
+            throws IOException
+    {
+        Path file = write("file.sql", "select 1");
+        BulkFormatter.Result result = formatFiles(BulkFormatter.Mode.CHECK, Optional.empty(), file);
+        assertEquals(ImmutableList.of(file), result.getChanged());
+        assertEquals(1, result.getDifferences().get(file).getColumn());
+        assertEquals("select 1", read(file));
+    }
+
+    @Test
+    public void testIndexSkipsUnchangedFiles()
+            throws IOException
+    {
+        Path file = write("file.sql", "select 1");
+        FormattingIndex index = new FormattingIndex("");
+        formatFiles(BulkFormatter.Mode.FORMAT, Optional.of(index), file);
+
+        Path indexFile = directory.resolve("index");
+        index.save(indexFile);
+        FormattingIndex loaded = new FormattingIndex("");
+        loaded.load(indexFile);
+
+        formatted.set(0);
+        BulkFormatter.Result result = formatFiles(BulkFormatter.Mode.CHECK, Optional.of(loaded), file);
+        assertEquals(1, result.getSkipped());
+        assertEquals(0, formatted.get());
+
+        // touched but not modified, recognized by content
+        Files.setLastModifiedTime(file, FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() + 10_000));
+        result = formatFiles(BulkFormatter.Mode.CHECK, Optional.of(loaded), file);
+        assertEquals(1, result.getSkipped());
+        assertEquals(0, formatted.get());
+
+        Files.write(file, "select 2".getBytes(UTF_8));
+        result = formatFiles(BulkFormatter.Mode.CHECK, Optional.of(loaded), file);
+        assertEquals(ImmutableList.of(file), result.getChanged());
+
+        // index saved with other options is ignored
+        FormattingIndex other = new FormattingIndex("other");
+        other.load(indexFile);
+        assertEquals(0, other.size());
+    }
+
+    @Test
+    public void testFindFiles()
+            throws IOException
+    {
+        Path top = write("top.sql", "");
+        Path nested = write("a/b/nested.sql", "");
+        Path text = write("a/notes.txt", "");
+
+        assertEquals(ImmutableList.of(nested, top), BulkFormatter.findFiles(ImmutableList.of(directory.toString())));
+        assertEquals(ImmutableList.of(text), BulkFormatter.findFiles(ImmutableList.of(text.toString())));
+        assertEquals(ImmutableList.of(nested, top), BulkFormatter.findFiles(ImmutableList.of(directory + "/**/*.sql")));
+        assertEquals(ImmutableList.of(top), BulkFormatter.findFiles(ImmutableList.of(directory + "/*.sql")));
+        assertEquals(ImmutableList.of(text), BulkFormatter.findFiles(ImmutableList.of(directory + "/a/*.{txt,csv}")));
+    }
+
+    private BulkFormatter.Result formatFiles(BulkFormatter.Mode mode, Optional<FormattingIndex> index, Path... files)
+    {
+        CanonicalChecker checker = new CanonicalChecker(SQL_PARSER::createStatement, FormattingOptions.DEFAULT);
+        return new BulkFormatter(formatter, checker, mode, index, executor).formatFiles(ImmutableList.copyOf(files));
+    }
+
+    private static String canonical(String sql)
+    {
+        return formatSql(SQL_PARSER.createStatement(sql)) + ";\n";
+    }
+
+    private Path write(String name, String content)
+            throws IOException
+    {
+        Path file = directory.resolve(name);
+        Files.createDirectories(file.getParent());
+        Files.write(file, content.getBytes(UTF_8));
+        return file;
+    }
+
+    private static String read(Path file)
+            throws IOException
+    {
+        return new String(Files.readAllBytes(file), UTF_8);
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rocks.prestodb.query.formatter;
+
+import com.facebook.presto.sql.parser.SqlParser;
+import org.junit.Test;
+import rocks.prestodb.query.formatter.CanonicalChecker.Difference;
+
+import java.util.Optional;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static rocks.prestodb.query.formatter.StatementFormatter.formatSql;
+
+public class TestCanonicalChecker
+{
+    private static final SqlParser SQL_PARSER = new SqlParser();
+
+    private final CanonicalChecker checker = new CanonicalChecker(SQL_PARSER::createStatement, FormattingOptions.DEFAULT);
+
+    @Test
+    public void testFormatted()
+    {
+        assertFalse(checker.check("").isPresent());
+        assertFalse(checker.check(canonical("select a, b from t where x = 1") + canonical("select 2")).isPresent());
+    }
+
+    @Test
+    public void testDifference()
+    {
+        // "SELECT 1\n\n;\n" followed by the second statement, which differs in its first line
+        String sql = canonical("select 1") + "SELECT  2\n\n;\n";
+        assertDifference(sql, 4, 8);
+
+        assertDifference(canonical("select 1") + "\n", 4, 1);
+        assertDifference(canonical("select 1").trim(), 3, 2);
+        assertDifference("select 1", 1, 1);
+    }
+
+    private void assertDifference(String sql, int line, int column)
+    {
+        Optional<Difference> difference = checker.check(sql);
+        assertEquals(line, difference.get().getLine());
+        assertEquals(column, difference.get().getColumn());
+    }
+
+    private static String canonical(String sql)
+    {
+        return formatSql(SQL_PARSER.createStatement(sql)) + ";\n";
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rocks.prestodb.query.formatter;
+
+import com.facebook.presto.sql.parser.SqlParser;
+import com.facebook.presto.sql.tree.Statement;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static rocks.prestodb.query.formatter.StatementFormatter.formatSql;
+
+public class TestCompactOutput
+{
+    private static final SqlParser SQL_PARSER = new SqlParser();
+    private static final FormattingOptions COMPACT = FormattingOptions.DEFAULT.withCompact(true);
+
+    @Test
+    public void testCompact()
+    {
+        assertCompact("select a, b from t where x = 1 and y in (1, 2)", "SELECT \"a\",\"b\" FROM t WHERE((\"x\"=1)AND(\"y\" IN(1,2)))");
+        assertCompact("select 1 - -1, - (-1)", "SELECT(1- -1),- -1");
+        assertCompact("select 'a  b\n', \"x  y\" from t", "SELECT 'a  b\n',\"x  y\" FROM t");
+        assertCompact("select 'it''s  x'", "SELECT 'it''s  x'");
+    }
+
+    @Test
+    public void testRoundTrip()
+    {
+        QueryFormatter formatter = new QueryFormatter(COMPACT);
+        for (String sql : queries()) {
+            Statement statement = SQL_PARSER.createStatement(sql);
+            assertEquals(sql, statement, SQL_PARSER.createStatement(formatter.format(statement)));
+        }
+    }
+
+    @Test
+    public void testOutputSize()
+    {
+        long prettySize = 0;
+        long compactSize = 0;
+        QueryFormatter formatter = new QueryFormatter(COMPACT);
+        for (String sql : queries()) {
+            Statement statement = SQL_PARSER.createStatement(sql);
+            String pretty = formatSql(statement);
+            String compact = formatter.format(statement);
+            assertTrue(sql, compact.length() <= pretty.length());
+            prettySize += pretty.length();
+            compactSize += compact.length();
+        }
+        assertTrue(compactSize + " compact against " + prettySize + " pretty characters", compactSize < prettySize * 0.8);
+
+        String nested = "select a, sum(b) from (select a, b from t where x = 1 and (y = 2 or z in (1, 2, 3))) group by a having count(*) > 1 order by a";
+        Statement statement = SQL_PARSER.createStatement(nested);
+        String compact = formatter.format(statement);
+        assertEquals(statement, SQL_PARSER.createStatement(compact));
+        assertTrue(compact, compact.length() < formatSql(statement).length() * 0.6);
+    }
+
+    private static Iterable<String> queries()
+    {
+        return new BufferedReader(new InputStreamReader(TestCompactOutput.class.getResourceAsStream("/queries.txt"), UTF_8)).lines()::iterator;
+    }
+
+    private static void assertCompact(String sql, String expected)
+    {
+        assertEquals(expected, formatSql(SQL_PARSER.createStatement(sql), COMPACT));
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rocks.prestodb.query.formatter;
+
+import com.facebook.presto.sql.parser.SqlParser;
+import com.facebook.presto.sql.tree.ArithmeticBinaryExpression;
+import com.facebook.presto.sql.tree.Expression;
+import com.facebook.presto.sql.tree.Identifier;
+import com.facebook.presto.sql.tree.Join;
+import com.facebook.presto.sql.tree.JoinOn;
+import com.facebook.presto.sql.tree.LogicalBinaryExpression;
+import com.facebook.presto.sql.tree.LongLiteral;
+import com.facebook.presto.sql.tree.QualifiedName;
+import com.facebook.presto.sql.tree.Relation;
+import com.facebook.presto.sql.tree.Table;
+import org.junit.Test;
+
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static rocks.prestodb.query.formatter.ExpressionFormatter.formatExpression;
+import static rocks.prestodb.query.formatter.StatementFormatter.formatSql;
+
+public class TestDeepTrees
+{
+    private static final SqlParser SQL_PARSER = new SqlParser();
+    private static final int DEPTH = 100_000;
+    private static final long STACK_SIZE = 256 * 1024;
+
+    @Test
+    public void testLogicalChain()
+            throws Exception
+    {
+        Expression expression = new Identifier("c0");
+        for (int i = 1; i < DEPTH; i++) {
+            expression = new LogicalBinaryExpression(LogicalBinaryExpression.Type.OR, expression, new Identifier("c" + i));
+        }
+        String formatted = formatWithSmallStack(expression);
+        assertEquals(DEPTH - 1, count(formatted, "OR "));
+        assertTrue(formatted.startsWith("(\"c0\"\n"));
+        assertTrue(formatted.endsWith("OR \"c" + (DEPTH - 1) + "\")"));
+    }
+
+    @Test
+    public void testArithmeticNesting()
+            throws Exception
+    {
+        Expression expression = new LongLiteral("0");
+        for (int i = 1; i < DEPTH; i++) {
+            Expression operand = new LongLiteral(String.valueOf(i));
+            expression = i % 2 == 0
+                    ? new ArithmeticBinaryExpression(ArithmeticBinaryExpression.Type.ADD, expression, operand)
+                    : new ArithmeticBinaryExpression(ArithmeticBinaryExpression.Type.MULTIPLY, operand, expression);
+        }
+        String formatted = formatWithSmallStack(expression);
+        assertEquals(DEPTH - 1, count(formatted, "("));
+        assertEquals(DEPTH - 1, count(formatted, ")"));
+    }
+
+    @Test
+    public void testMixedMatchesParsedExpression()
+    {
+        Expression expression = SQL_PARSER.createExpression("a OR b AND (c OR d OR e) OR x + y * (z - 1) > 2 AND f(a + b) = 3");
+        assertEquals(
+                "(\"a\"\n      OR (\"b\"\n         AND (\"c\"\n            OR \"d\"\n            OR \"e\"))\n      OR (((\"x\" + (\"y\" * (\"z\" - 1))) > 2)\n         AND (\"f\"((\"a\" + \"b\")) = 3)))",
+                formatExpression(expression, Optional.empty(), 0));
+    }
+
+    @Test
+    public void testSameOperatorChainsFlattened()
+    {
+        Expression expression = SQL_PARSER.createExpression("a AND (b AND (c AND d)) AND (e OR f)");
+        assertEquals(
+                "(\"a\"\n      AND \"b\"\n      AND \"c\"\n      AND \"d\"\n      AND (\"e\"\n         OR \"f\"))",
+                formatExpression(expression, Optional.empty(), 0));
+    }
+
+    @Test
+    public void testJoinChain()
+            throws Exception
+    {
+        Relation relation = new Table(QualifiedName.of("t0"));
+        for (int i = 1; i < DEPTH; i++) {
+            Expression criteria = new LogicalBinaryExpression(LogicalBinaryExpression.Type.AND, new Identifier("a"), new Identifier("b" + i));
+            relation = new Join(Join.Type.INNER, relation, new Table(QualifiedName.of("t" + i)), Optional.of(new JoinOn(criteria)));
+        }
+        Relation root = relation;
+        String formatted = runWithSmallStack(() -> formatSql(root));
+        assertEquals(DEPTH - 1, count(formatted, "INNER JOIN "));
+        assertTrue(formatted.endsWith("INNER JOIN t" + (DEPTH - 1) + " ON (\"a\"\n      AND \"b" + (DEPTH - 1) + "\"))"));
+    }
+
+    private static String formatWithSmallStack(Expression expression)
+            throws Exception
+    {
+        return runWithSmallStack(() -> formatExpression(expression, Optional.empty(), 0));
+    }
+
+    private static String runWithSmallStack(Supplier<String> task)
+            throws Exception
+    {
+        AtomicReference<String> result = new AtomicReference<>();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread thread = new Thread(null, () -> {
+            try {
+                result.set(task.get());
+            }
+            catch (Throwable e) {
+                failure.set(e);
+            }
+        }, "small-stack", STACK_SIZE);
+        thread.start();
+        thread.join();
+        if (failure.get() != null) {
+            throw new AssertionError("formatting failed", failure.get());
+        }
+        return result.get();
+    }
+
+    private static int count(String text, String substring)
+    {
+        int count = 0;
+        for (int index = text.indexOf(substring); index >= 0; index = text.indexOf(substring, index + substring.length())) {
+            count++;
+        }
+        return count;
+    }
+}
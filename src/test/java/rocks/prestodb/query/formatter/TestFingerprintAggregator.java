@@ -0,0 +1,74 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rocks.prestodb.query.formatter;
+
+import com.google.common.hash.HashCode;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestFingerprintAggregator
+{
+    @Test
+    public void testExactBelowCapacity()
+    {
+        FingerprintAggregator aggregator = new FingerprintAggregator(10);
+        for (int i = 0; i < 100; i++) {
+            add(aggregator, i % 4);
+        }
+        List<FingerprintAggregator.Entry> entries = aggregator.getEntries();
+        assertEquals(4, entries.size());
+        for (FingerprintAggregator.Entry entry : entries) {
+            assertEquals(25, entry.getCount());
+            assertEquals(0, entry.getError());
+            assertEquals("statement " + entry.getFingerprint().asInt(), entry.getNormalized());
+        }
+        assertEquals(100, aggregator.getStatements());
+    }
+
+    @Test
+    public void testKeepsFrequentFingerprints()
+    {
+        FingerprintAggregator aggregator = new FingerprintAggregator(20);
+        Random random = new Random(42);
+        for (int i = 0; i < 100_000; i++) {
+            // a few frequent fingerprints among many rare ones
+            add(aggregator, random.nextInt(10) < 3 ? random.nextInt(3) : 1000 + random.nextInt(100_000));
+        }
+
+        List<FingerprintAggregator.Entry> entries = aggregator.getEntries();
+        assertEquals(20, entries.size());
+        long total = 0;
+        for (int i = 0; i < 3; i++) {
+            FingerprintAggregator.Entry entry = entries.get(i);
+            assertTrue(entry.getFingerprint().asInt() < 3);
+            // about 10000 each, never under-counted
+            assertTrue(entry.getCount() - entry.getError() < 11_000);
+            assertTrue(entry.getCount() > 9_000);
+        }
+        for (FingerprintAggregator.Entry entry : entries) {
+            total += entry.getCount();
+        }
+        assertEquals(100_000, total);
+    }
+
+    private static void add(FingerprintAggregator aggregator, int id)
+    {
+        aggregator.add(HashCode.fromInt(id), () -> "statement " + id);
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rocks.prestodb.query.formatter;
+
+import com.facebook.presto.sql.parser.SqlParser;
+import com.facebook.presto.sql.tree.Statement;
+import com.google.common.hash.HashCode;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class TestFingerprinter
+{
+    private static final SqlParser SQL_PARSER = new SqlParser();
+
+    @Test
+    public void testNormalize()
+    {
+        assertEquals(
+                "SELECT \"a\"\nFROM\n  t\nWHERE ((\"x\" = ?)\n      AND (\"y\" IN (?))\n      AND (\"z\" IN (\n        \"a\"\n      , ?)))\n",
+                normalize("select a from t where x = -5 and y in (1, 'b', DATE '2017-01-01') and z in (a, 2)"));
+        assertEquals(
+                "SELECT *\nFROM\n  t\nWHERE (\"x\" IS NULL)\n",
+                normalize("select * from t where x is null"));
+    }
+
+    @Test
+    public void testFingerprint()
+    {
+        assertEquals(
+                fingerprint("select a from t where x = 1 and y in (1, 2) limit 10"),
+                fingerprint("SELECT a FROM t WHERE x = 'abc' AND y IN (3)   LIMIT 10"));
+        assertNotEquals(
+                fingerprint("select a from t where x = 1"),
+                fingerprint("select a from t where x = y"));
+        assertNotEquals(
+                fingerprint("select a from t limit 10"),
+                fingerprint("select a from t limit 20"));
+    }
+
+    @Test
+    public void testFingerprintIsHashOfNormalizedForm()
+    {
+        new BufferedReader(new InputStreamReader(TestFingerprinter.class.getResourceAsStream("/queries.txt"))).lines()
+                .map(SQL_PARSER::createStatement)
+                .forEach(statement -> assertEquals(Fingerprinter.hash(Fingerprinter.normalize(statement)), Fingerprinter.fingerprint(statement)));
+    }
+
+    private static String normalize(String sql)
+    {
+        return Fingerprinter.normalize(SQL_PARSER.createStatement(sql));
+    }
+
+    private static HashCode fingerprint(String sql)
+    {
+        Statement statement = SQL_PARSER.createStatement(sql);
+        return Fingerprinter.fingerprint(statement);
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rocks.prestodb.query.formatter;
+
+import com.facebook.presto.sql.parser.SqlParser;
+import com.facebook.presto.sql.tree.Statement;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import java.lang.management.ManagementFactory;
+import java.util.Optional;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static rocks.prestodb.query.formatter.StatementFormatter.formatSql;
+
+public class TestFormatterMetrics
+{
+    private static final SqlParser SQL_PARSER = new SqlParser();
+
+    @Test
+    public void testRecordedStatements()
+    {
+        FormatterMetrics metrics = recordStatements(Optional.of(new FormattingCache(10, "")));
+
+        assertEquals(3, metrics.getStatements());
+        assertEquals(2, metrics.getParseNanosP50());
+        assertEquals(3, metrics.getParseNanosP99());
+        assertEquals(3, metrics.getParseNanosMax());
+        assertEquals(5, metrics.getFormatNanosP50());
+        assertEquals(7, metrics.getFormatNanosP99());
+        assertEquals(7, metrics.getFormatNanosMax());
+        assertEquals(8, metrics.getStatementCharsP50());
+        assertEquals(12, metrics.getStatementCharsP99());
+        assertEquals(12, metrics.getStatementCharsMax());
+        assertEquals(2, metrics.getExpressionDepthP50());
+        assertEquals(2, metrics.getExpressionDepthMax());
+        assertEquals(2, metrics.getVerified());
+        assertEquals(0, metrics.getVerificationSkipped());
+        assertEquals(0, metrics.getVerificationMismatches());
+        assertTrue(metrics.getVerifyNanosMax() > 0);
+        assertEquals(1, metrics.getCacheHits());
+        assertEquals(2, metrics.getCacheMisses());
+
+        String summary = metrics.getSummary();
+        assertTrue(summary, summary.startsWith("{\"statements\":3," +
+                "\"parseNanos\":{\"count\":3,\"mean\":2.0,\"p50\":2,\"p90\":3,\"p99\":3,\"max\":3}," +
+                "\"formatNanos\":{\"count\":3,\"mean\":5.0,\"p50\":5,\"p90\":7,\"p99\":7,\"max\":7}," +
+                "\"verifyNanos\":{\"count\":2,"));
+        assertTrue(summary, summary.endsWith(
+                "\"statementChars\":{\"count\":3,\"mean\":8.0,\"p50\":8,\"p90\":12,\"p99\":12,\"max\":12}," +
+                "\"expressionDepth\":{\"count\":3,\"mean\":2.0,\"p50\":2,\"p90\":2,\"p99\":2,\"max\":2}," +
+                "\"verification\":{\"verified\":2,\"skipped\":0,\"mismatches\":0}," +
+                "\"cache\":{\"size\":2,\"hits\":1,\"misses\":2,\"evictions\":0}}"));
+    }
+
+    @Test
+    public void testWithoutCache()
+    {
+        FormatterMetrics metrics = recordStatements(Optional.empty());
+        assertEquals(0, metrics.getCacheHits());
+        assertEquals(0, metrics.getCacheMisses());
+        assertTrue(metrics.getSummary(), metrics.getSummary().endsWith(",\"cache\":null}"));
+    }
+
+    @Test
+    public void testExport()
+            throws Exception
+    {
+        FormatterMetrics metrics = recordStatements(Optional.empty());
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(FormatterMetrics.OBJECT_NAME);
+        metrics.export();
+        try {
+            assertEquals(3L, server.getAttribute(name, "Statements"));
+            assertEquals(12L, server.getAttribute(name, "StatementCharsMax"));
+            assertEquals(2L, server.getAttribute(name, "Verified"));
+            assertEquals(metrics.getSummary(), server.getAttribute(name, "Summary"));
+        }
+        finally {
+            server.unregisterMBean(name);
+        }
+    }
+
+    /**
+     * Records three statements with fixed timings, two of them verified, and, when there is a
+     * cache, looks up two distinct statements once and one of them again.
+     */
+    private static FormatterMetrics recordStatements(Optional<FormattingCache> cache)
+    {
+        Verifier verifier = new Verifier(SQL_PARSER, Verifier.Mode.ALWAYS, 0);
+        FormatterMetrics metrics = new FormatterMetrics(verifier, cache);
+        long[] parseNanos = {1, 2, 3};
+        long[] formatNanos = {3, 5, 7};
+        long[] statementChars = {4, 8, 12};
+        for (int i = 0; i < 3; i++) {
+            metrics.getParseNanos().record(parseNanos[i]);
+            metrics.getFormatNanos().record(formatNanos[i]);
+            metrics.getStatementChars().record(statementChars[i]);
+            metrics.getExpressionDepth().record(2);
+        }
+        for (String sql : new String[] {"select a from t", "select b from t"}) {
+            Statement statement = SQL_PARSER.createStatement(sql);
+            assertTrue(verifier.verify(statement, formatSql(statement)));
+        }
+        cache.ifPresent(formattingCache -> {
+            formattingCache.get("select a from t", String::toUpperCase);
+            formattingCache.get("select b from t", String::toUpperCase);
+            formattingCache.get("select a from t", String::toUpperCase);
+        });
+        return metrics;
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rocks.prestodb.query.formatter;
+
+import com.facebook.presto.sql.parser.SqlParser;
+import com.facebook.presto.sql.tree.Statement;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static java.util.function.Function.identity;
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toMap;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestFormatterProfile
+{
+    private static final SqlParser SQL_PARSER = new SqlParser();
+
+    @Test
+    public void testCounts()
+    {
+        FormatterProfile profile = new FormatterProfile();
+        QueryFormatter formatter = new QueryFormatter(FormattingOptions.DEFAULT, Optional.of(profile));
+        String formatted = formatter.format(SQL_PARSER.createStatement("SELECT a, b FROM t WHERE a IN (SELECT c FROM u) GROUP BY a ORDER BY b"));
+
+        Map<String, FormatterProfile.Entry> entries = profile.getEntries().stream()
+                .collect(toMap(FormatterProfile.Entry::getName, identity()));
+        assertEquals(2, entries.get("Query").getCalls());
+        assertEquals(2, entries.get("QuerySpecification").getCalls());
+        assertEquals(1, entries.get("InPredicate").getCalls());
+        assertEquals(1, entries.get("SubqueryExpression").getCalls());
+        assertEquals(1, entries.get("formatGroupBy").getCalls());
+        assertEquals(1, entries.get("formatSortItems").getCalls());
+        // a, b and c selected, a compared, grouped by and b ordered by
+        assertEquals(6, entries.get("Identifier").getCalls());
+
+        // every character is written by exactly one visit
+        assertEquals(formatted.length(), profile.getEntries().stream().mapToLong(FormatterProfile.Entry::getSelfChars).sum());
+        for (FormatterProfile.Entry entry : profile.getEntries()) {
+            assertTrue(entry.toString(), entry.getSelfNanos() <= entry.getTotalNanos());
+        }
+
+        String report = profile.getReport();
+        assertTrue(report, report.startsWith("node "));
+        assertTrue(report, report.contains("formatGroupBy"));
+    }
+
+    @Test
+    public void testDoesNotChangeOutput()
+    {
+        List<Statement> statements = new BufferedReader(new InputStreamReader(TestFormatterProfile.class.getResourceAsStream("/queries.txt"))).lines()
+                .map(SQL_PARSER::createStatement)
+                .collect(toList());
+        FormatterProfile profile = new FormatterProfile();
+        for (FormattingOptions options : new FormattingOptions[] {FormattingOptions.DEFAULT, FormattingOptions.DEFAULT.withMaxLineWidth(40)}) {
+            QueryFormatter formatter = new QueryFormatter(options);
+            QueryFormatter profiled = new QueryFormatter(options, Optional.of(profile));
+            for (Statement statement : statements) {
+                assertEquals(formatter.format(statement), profiled.format(statement));
+            }
+        }
+        assertTrue(profile.getEntries().size() > 10);
+    }
+}
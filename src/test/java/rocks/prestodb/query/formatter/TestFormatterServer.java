@@ -0,0 +1,223 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rocks.prestodb.query.formatter;
+
+import com.facebook.presto.sql.parser.SqlParser;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static rocks.prestodb.query.formatter.StatementFormatter.formatSql;
+
+public class TestFormatterServer
+{
+    private static final SqlParser SQL_PARSER = new SqlParser();
+    private static final int MAX_CONNECTIONS = 4;
+    private static final int MAX_REQUEST_SIZE = 1024;
+
+    private FormatterServer server;
+    private Thread serverThread;
+
+    @Before
+    public void setUp()
+            throws IOException
+    {
+        server = new FormatterServer(0, sql -> formatSql(SQL_PARSER.createStatement(sql)) + ";", MAX_CONNECTIONS, MAX_REQUEST_SIZE);
+        serverThread = new Thread(() -> {
+            try {
+                server.serve();
+            }
+            catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        serverThread.start();
+    }
+
+    @After
+    public void tearDown()
+            throws Exception
+    {
+        server.close();
+        serverThread.join();
+    }
+
+    @Test
+    public void testFormat()
+            throws IOException
+    {
+        try (Socket socket = connect()) {
+            Response response = request(socket, "select 1; select a from t");
+            assertEquals(FormatterServer.STATUS_OK, response.status);
+            assertEquals(formatSql(SQL_PARSER.createStatement("select 1")) + ";\n" + formatSql(SQL_PARSER.createStatement("select a from t")) + ";\n", response.payload);
+
+            // connection stays usable for further requests
+            response = request(socket, "select 2");
+            assertEquals(FormatterServer.STATUS_OK, response.status);
+        }
+    }
+
+    @Test
+    public void testParseError()
+            throws IOException
+    {
+        try (Socket socket = connect()) {
+            Response response = request(socket, "select 1;\nselect from");
+            assertEquals(FormatterServer.STATUS_PARSE_ERROR, response.status);
+            assertEquals(1, response.line);
+            assertEquals(8, response.column);
+
+            response = request(socket, "select 3");
+            assertEquals(FormatterServer.STATUS_OK, response.status);
+        }
+    }
+
+    @Test
+    public void testRequestSizeLimit()
+            throws IOException
+    {
+        try (Socket socket = connect()) {
+            DataOutputStream output = new DataOutputStream(socket.getOutputStream());
+            // only the length is sent; the body is never allocated up front
+            output.writeInt(Integer.MAX_VALUE);
+            output.flush();
+            Response response = readResponse(socket);
+            assertEquals(FormatterServer.STATUS_ERROR, response.status);
+            assertEquals("Request size must be between 0 and " + MAX_REQUEST_SIZE + " bytes: " + Integer.MAX_VALUE, response.payload);
+        }
+        try (Socket socket = connect()) {
+            String sql = "select '" + new String(new char[MAX_REQUEST_SIZE - 9]).replace('\0', 'x') + "'";
+            assertEquals(MAX_REQUEST_SIZE, sql.length());
+            assertEquals(FormatterServer.STATUS_OK, request(socket, sql).status);
+        }
+    }
+
+    @Test
+    public void testConnectionLimit()
+            throws IOException
+    {
+        List<Socket> sockets = new ArrayList<>();
+        try {
+            for (int i = 0; i < MAX_CONNECTIONS; i++) {
+                Socket socket = connect();
+                sockets.add(socket);
+                assertEquals(FormatterServer.STATUS_OK, request(socket, "select " + i).status);
+            }
+
+            Socket waiting = connect();
+            sockets.add(waiting);
+            waiting.setSoTimeout(200);
+            try {
+                request(waiting, "select 5");
+                fail("expected the connection to wait for a free slot");
+            }
+            catch (SocketTimeoutException e) {
+                // all slots are taken
+            }
+
+            sockets.remove(0).close();
+            waiting.setSoTimeout(10_000);
+            assertEquals(FormatterServer.STATUS_OK, readResponse(waiting).status);
+        }
+        finally {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+
+    @Test
+    public void testConcurrentClients()
+            throws Exception
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        try {
+            List<Future<Response>> responses = new ArrayList<>();
+            for (int i = 0; i < 64; i++) {
+                String sql = "select " + i;
+                responses.add(executor.submit(() -> {
+                    try (Socket socket = connect()) {
+                        return request(socket, sql);
+                    }
+                }));
+            }
+            for (int i = 0; i < responses.size(); i++) {
+                assertEquals(formatSql(SQL_PARSER.createStatement("select " + i)) + ";\n", responses.get(i).get().payload);
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private Socket connect()
+            throws IOException
+    {
+        return new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+    }
+
+    private static Response request(Socket socket, String sql)
+            throws IOException
+    {
+        DataOutputStream output = new DataOutputStream(socket.getOutputStream());
+        byte[] bytes = sql.getBytes(UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+        output.flush();
+        return readResponse(socket);
+    }
+
+    private static Response readResponse(Socket socket)
+            throws IOException
+    {
+        DataInputStream input = new DataInputStream(socket.getInputStream());
+        byte status = input.readByte();
+        int line = input.readInt();
+        int column = input.readInt();
+        byte[] payload = new byte[input.readInt()];
+        input.readFully(payload);
+        return new Response(status, line, column, new String(payload, UTF_8));
+    }
+
+    private static class Response
+    {
+        private final byte status;
+        private final int line;
+        private final int column;
+        private final String payload;
+
+        public Response(byte status, int line, int column, String payload)
+        {
+            this.status = status;
+            this.line = line;
+            this.column = column;
+            this.payload = payload;
+        }
+    }
+}
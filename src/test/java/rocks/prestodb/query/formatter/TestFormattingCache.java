@@ -0,0 +1,139 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rocks.prestodb.query.formatter;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static io.airlift.airline.SingleCommand.singleCommand;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class TestFormattingCache
+{
+    @Test
+    public void testHitsAndMisses()
+    {
+        AtomicInteger calls = new AtomicInteger();
+        Function<String, String> formatter = sql -> {
+            calls.incrementAndGet();
+            return sql.toUpperCase();
+        };
+
+        FormattingCache cache = new FormattingCache(10, "");
+        assertEquals("SELECT 1", cache.get("select 1", formatter));
+        assertEquals("SELECT 1", cache.get("select 1", formatter));
+        assertEquals("SELECT 2", cache.get("select 2", formatter));
+
+        assertEquals(2, calls.get());
+        assertEquals(1, cache.getStats().hitCount());
+        assertEquals(2, cache.getStats().missCount());
+    }
+
+    @Test
+    public void testOptionsAreIsolated()
+            throws IOException
+    {
+        Path snapshot = Files.createTempFile("formatting-cache", ".bin");
+        try {
+            FormattingCache cache = new FormattingCache(10, "a");
+            cache.get("select 1", sql -> "a");
+            cache.save(snapshot);
+
+            FormattingCache other = new FormattingCache(10, "b");
+            other.load(snapshot);
+            assertEquals("b", other.get("select 1", sql -> "b"));
+        }
+        finally {
+            Files.deleteIfExists(snapshot);
+        }
+    }
+
+    @Test
+    public void testSnapshot()
+            throws IOException
+    {
+        Path snapshot = Files.createTempFile("formatting-cache", ".bin");
+        try {
+            FormattingCache cache = new FormattingCache(10, "");
+            cache.get("select 1", sql -> "SELECT 1");
+            cache.get("select 'ünïcode'", sql -> "SELECT 'ünïcode'");
+            cache.save(snapshot);
+
+            FormattingCache restored = new FormattingCache(10, "");
+            restored.load(snapshot);
+            assertEquals(2, restored.size());
+            assertEquals("SELECT 'ünïcode'", restored.get("select 'ünïcode'", sql -> {
+                throw new AssertionError("expected cache hit");
+            }));
+        }
+        finally {
+            Files.deleteIfExists(snapshot);
+        }
+    }
+
+    @Test
+    public void testEviction()
+    {
+        FormattingCache cache = new FormattingCache(2, "");
+        for (int i = 0; i < 10; i++) {
+            cache.get("select " + i, Function.identity());
+        }
+        assertEquals(2, cache.size());
+        assertEquals(8, cache.getStats().evictionCount());
+    }
+
+    @Test
+    public void testMismatchIsNotCached()
+            throws Exception
+    {
+        // written as one AND chain, which parses to a different tree
+        String mismatching = "select x from t where a and (b and c);";
+        Path directory = Files.createTempDirectory("formatting-cache");
+        Path snapshot = directory.resolve("snapshot");
+        Path input = directory.resolve("input.sql");
+        Path output = directory.resolve("output.sql");
+        Path file = directory.resolve("file.sql");
+        try {
+            Files.write(input, ("select a from t;" + mismatching).getBytes(UTF_8));
+            Main main = singleCommand(Main.class).parse(
+                    "--input", input.toString(), "--output", output.toString(),
+                    "--verify", "SAMPLED", "--verify-sample-rate", "1",
+                    "--cache-size", "10", "--cache-snapshot", snapshot.toString());
+            assertFalse(main.run());
+
+            FormattingCache cache = new FormattingCache(10, FormattingOptions.DEFAULT.toString());
+            cache.load(snapshot);
+            assertEquals(1, cache.size());
+            assertFalse(cache.getIfPresent(mismatching).isPresent());
+
+            // verified again rather than served from the cache, so the file is not rewritten
+            Files.write(file, mismatching.getBytes(UTF_8));
+            main = singleCommand(Main.class).parse("--cache-size", "10", "--cache-snapshot", snapshot.toString(), file.toString());
+            assertFalse(main.run());
+            assertEquals(mismatching, new String(Files.readAllBytes(file), UTF_8));
+        }
+        finally {
+            for (Path path : new Path[] {snapshot, input, output, file, directory}) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rocks.prestodb.query.formatter;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestHistogram
+{
+    @Test
+    public void testBuckets()
+    {
+        for (long value : new long[] {0, 1, 15, 16, 17, 100, 1_000_000, Long.MAX_VALUE / 3, Long.MAX_VALUE}) {
+            int bucket = Histogram.bucket(value);
+            long highest = Histogram.highestValue(bucket);
+            assertTrue(value + " in bucket ending at " + highest, highest >= value && highest - value <= value / 8);
+            if (bucket > 0) {
+                assertTrue(Histogram.highestValue(bucket - 1) < value);
+            }
+        }
+    }
+
+    @Test
+    public void testPercentiles()
+    {
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.getValueAtPercentile(50));
+        for (int value = 1; value <= 1000; value++) {
+            histogram.record(value);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500.5, histogram.getMean(), 0.0001);
+        assertEquals(1000, histogram.getMax());
+        assertEquals(1000, histogram.getValueAtPercentile(100));
+        assertWithin(500, histogram.getValueAtPercentile(50));
+        assertWithin(990, histogram.getValueAtPercentile(99));
+        assertEquals("{\"count\":1000,\"mean\":500.5,\"p50\":511,\"p90\":959,\"p99\":1000,\"max\":1000}", histogram.toJson());
+    }
+
+    private static void assertWithin(long expected, long actual)
+    {
+        assertTrue(expected + " vs " + actual, actual >= expected && actual <= expected * 1.125);
+    }
+}
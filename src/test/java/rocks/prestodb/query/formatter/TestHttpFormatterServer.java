@@ -0,0 +1,235 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rocks.prestodb.query.formatter;
+
+import com.facebook.presto.sql.parser.SqlParser;
+import com.google.common.io.ByteStreams;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static rocks.prestodb.query.formatter.StatementFormatter.formatSql;
+
+public class TestHttpFormatterServer
+{
+    private static final SqlParser SQL_PARSER = new SqlParser();
+
+    private HttpFormatterServer server;
+    private Thread serverThread;
+
+    private void start(Function<String, String> formatter, int maxConcurrentFormats, long timeoutMillis)
+            throws IOException
+    {
+        server = new HttpFormatterServer(0, formatter, maxConcurrentFormats, 1024, timeoutMillis, MILLISECONDS);
+        serverThread = new Thread(() -> {
+            try {
+                server.serve();
+            }
+            catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        serverThread.start();
+    }
+
+    @After
+    public void tearDown()
+            throws Exception
+    {
+        server.close();
+        serverThread.join();
+    }
+
+    @Test
+    public void testFormat()
+            throws IOException
+    {
+        start(sql -> formatSql(SQL_PARSER.createStatement(sql)) + ";", 2, 10_000);
+
+        Response response = post("select 1; select a from t");
+        assertEquals(200, response.status);
+        assertEquals(formatSql(SQL_PARSER.createStatement("select 1")) + ";\n" + formatSql(SQL_PARSER.createStatement("select a from t")) + ";\n", response.body);
+
+        response = post("select from");
+        assertEquals(400, response.status);
+        assertTrue(response.body, response.body.startsWith("line 1:8: "));
+
+        response = post(new String(new char[2000]).replace('\0', ' ') + "select 1");
+        assertEquals(413, response.status);
+
+        HttpURLConnection connection = (HttpURLConnection) url().openConnection();
+        assertEquals(405, connection.getResponseCode());
+    }
+
+    @Test
+    public void testMalformedContentLength()
+            throws IOException
+    {
+        start(sql -> sql, 1, 10_000);
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort())) {
+            OutputStream output = socket.getOutputStream();
+            output.write(("POST " + HttpFormatterServer.PATH + " HTTP/1.1\r\nHost: localhost\r\nContent-Length: 1x\r\n\r\nselect 1").getBytes(UTF_8));
+            output.flush();
+            // rejected by the handler, or by the HttpServer itself in newer JDKs, but never dropped
+            String status = new BufferedReader(new InputStreamReader(socket.getInputStream(), UTF_8)).readLine();
+            assertTrue(status, status.startsWith("HTTP/1.1 400"));
+        }
+    }
+
+    @Test
+    public void testFormatsOnReusedThreads()
+            throws IOException
+    {
+        Set<String> threads = ConcurrentHashMap.newKeySet();
+        start(sql -> {
+            threads.add(Thread.currentThread().getName());
+            return sql;
+        }, 2, 10_000);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(200, post("select " + i).status);
+        }
+        // formatting threads, and with them the formatter buffers, outlive requests
+        assertTrue(threads.toString(), threads.size() <= 2);
+        assertTrue(threads.toString(), threads.stream().allMatch(name -> name.startsWith("formatter-format-")));
+    }
+
+    @Test
+    public void testConcurrentFormatsLimit()
+            throws Exception
+    {
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch formatting = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        start(sql -> {
+            calls.incrementAndGet();
+            formatting.countDown();
+            try {
+                release.await();
+            }
+            catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            return sql;
+        }, 1, 10_000);
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<Response> first = executor.submit(() -> post("select 1"));
+            assertTrue(formatting.await(10, SECONDS));
+            Future<Response> second = executor.submit(() -> post("select 2"));
+            // the only format permit is held by the first request
+            MILLISECONDS.sleep(200);
+            assertFalse(second.isDone());
+            assertEquals(1, calls.get());
+            release.countDown();
+            assertEquals(200, first.get(10, SECONDS).status);
+            assertEquals(200, second.get(10, SECONDS).status);
+            assertEquals(2, calls.get());
+        }
+        finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testFormatTimeout()
+            throws Exception
+    {
+        CountDownLatch release = new CountDownLatch(1);
+        start(sql -> {
+            try {
+                release.await();
+            }
+            catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            return sql;
+        }, 1, 100);
+
+        try {
+            Response response = post("select 1");
+            assertEquals(503, response.status);
+            assertEquals("Formatting did not complete within the request timeout", response.body);
+            // the permit stays with the format that is still running
+            assertEquals("Too many concurrent requests", post("select 2").body);
+        }
+        finally {
+            release.countDown();
+        }
+        long deadline = System.nanoTime() + SECONDS.toNanos(10);
+        Response response = post("select 3");
+        while (response.status != 200 && System.nanoTime() < deadline) {
+            MILLISECONDS.sleep(10);
+            response = post("select 3");
+        }
+        assertEquals(200, response.status);
+    }
+
+    private URL url()
+            throws IOException
+    {
+        return new URL("http", "localhost", server.getPort(), HttpFormatterServer.PATH);
+    }
+
+    private Response post(String sql)
+            throws IOException
+    {
+        HttpURLConnection connection = (HttpURLConnection) url().openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        try (OutputStream output = connection.getOutputStream()) {
+            output.write(sql.getBytes(UTF_8));
+        }
+        int status = connection.getResponseCode();
+        try (InputStream input = status == 200 ? connection.getInputStream() : connection.getErrorStream()) {
+            return new Response(status, new String(ByteStreams.toByteArray(input), UTF_8));
+        }
+    }
+
+    private static class Response
+    {
+        private final int status;
+        private final String body;
+
+        Response(int status, String body)
+        {
+            this.status = status;
+            this.body = body;
+        }
+    }
+}
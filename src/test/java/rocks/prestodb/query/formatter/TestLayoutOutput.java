@@ -0,0 +1,124 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rocks.prestodb.query.formatter;
+
+import com.facebook.presto.sql.parser.SqlParser;
+import com.facebook.presto.sql.tree.Statement;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.util.List;
+
+import static java.util.stream.Collectors.toList;
+import static org.junit.Assert.assertEquals;
+import static rocks.prestodb.query.formatter.StatementFormatter.formatSql;
+
+public class TestLayoutOutput
+{
+    private static final SqlParser SQL_PARSER = new SqlParser();
+
+    @Test
+    public void testFitsOnOneLine()
+    {
+        assertEquals(
+                "SELECT \"a\", \"f\"(\"b\", \"c\")\n" +
+                        "FROM\n" +
+                        "  t\n" +
+                        "WHERE ((\"a\" = 1) AND (\"b\" IN (1, 2, 3)))\n",
+                format("select a, f(b, c) from t where a = 1 and b in (1, 2, 3)", 80));
+    }
+
+    @Test
+    public void testBreaksGroupsThatDoNotFit()
+    {
+        assertEquals(
+                "SELECT\n" +
+                        "  \"aaaaaaaaaa\"\n" +
+                        ", \"f\"(\n" +
+                        "   \"bbbbbbbbbb\",\n" +
+                        "   \"cccccccccc\")\n" +
+                        "FROM\n" +
+                        "  t\n" +
+                        "WHERE ((\"a\" = 1)\n" +
+                        "      AND (\"b\" IN (1, 2, 3)))\n",
+                format("select aaaaaaaaaa, f(bbbbbbbbbb, cccccccccc) from t where a = 1 and b in (1, 2, 3)", 30));
+    }
+
+    @Test
+    public void testPacksLiteralLists()
+    {
+        String sql = "select a from t where a in (1, 2, 3, 4, 5, -6, 7) and b in (c, 1)";
+        FormattingOptions options = FormattingOptions.DEFAULT.withListItemsPerLine(3);
+        assertEquals(
+                "SELECT \"a\"\n" +
+                        "FROM\n" +
+                        "  t\n" +
+                        "WHERE ((\"a\" IN (\n" +
+                        "        1, 2, 3\n" +
+                        "      , 4, 5, -6\n" +
+                        "      , 7))\n" +
+                        "      AND (\"b\" IN (\n" +
+                        "        \"c\"\n" +
+                        "      , 1)))\n",
+                formatSql(SQL_PARSER.createStatement(sql), options));
+        // also wrapped where the next item does not fit
+        assertEquals(
+                "SELECT \"a\"\n" +
+                        "FROM\n" +
+                        "  t\n" +
+                        "WHERE ((\"a\" IN (\n" +
+                        "        1, 2\n" +
+                        "      , 3\n" +
+                        "      , 4, 5\n" +
+                        "      , -6\n" +
+                        "      , 7))\n" +
+                        "      AND (\"b\" IN (\n" +
+                        "        \"c\"\n" +
+                        "      , 1)))\n",
+                formatSql(SQL_PARSER.createStatement(sql), options.withMaxLineWidth(14)));
+        assertEquals(
+                "INSERT INTO t  VALUES \n" +
+                        "  1, 2, 3\n" +
+                        ", 4\n",
+                formatSql(SQL_PARSER.createStatement("insert into t values 1, 2, 3, 4"), options));
+    }
+
+    @Test
+    public void testRoundTrip()
+    {
+        for (String query : queries()) {
+            Statement statement = SQL_PARSER.createStatement(query);
+            for (int maxLineWidth : new int[] {1, 40, 100, Integer.MAX_VALUE}) {
+                String formatted = formatSql(statement, FormattingOptions.DEFAULT.withMaxLineWidth(maxLineWidth));
+                assertEquals(query, statement, SQL_PARSER.createStatement(formatted));
+                formatted = formatSql(statement, FormattingOptions.DEFAULT.withMaxLineWidth(maxLineWidth).withListItemsPerLine(4));
+                assertEquals(query, statement, SQL_PARSER.createStatement(formatted));
+            }
+            String formatted = formatSql(statement, FormattingOptions.DEFAULT.withListItemsPerLine(4));
+            assertEquals(query, statement, SQL_PARSER.createStatement(formatted));
+        }
+    }
+
+    private static String format(String sql, int maxLineWidth)
+    {
+        return formatSql(SQL_PARSER.createStatement(sql), FormattingOptions.DEFAULT.withMaxLineWidth(maxLineWidth));
+    }
+
+    private static List<String> queries()
+    {
+        return new BufferedReader(new InputStreamReader(TestLayoutOutput.class.getResourceAsStream("/queries.txt"))).lines()
+                .collect(toList());
+    }
+}
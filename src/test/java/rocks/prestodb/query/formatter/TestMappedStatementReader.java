@@ -0,0 +1,88 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rocks.prestodb.query.formatter;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.stream.Collectors.joining;
+import static org.junit.Assert.assertEquals;
+
+public class TestMappedStatementReader
+{
+    @Test
+    public void testMatchesStreamingSplitter()
+            throws IOException
+    {
+        String sql = new BufferedReader(new InputStreamReader(TestMappedStatementReader.class.getResourceAsStream("/queries.txt"))).lines()
+                .collect(joining(";\n")) + ";\nselect 'partial";
+        for (long regionSize : ImmutableList.of(4096L, 4097L, Long.MAX_VALUE)) {
+            assertSplit(sql, regionSize);
+        }
+    }
+
+    @Test
+    public void testMultiByteCharactersBetweenRegions()
+            throws IOException
+    {
+        String sql = "select 'zażółć gęślą jaźń'; select '日本語'; select '😀😀' ; select 'partial 😀";
+        for (long regionSize : ImmutableList.of(4L, 5L, 6L, 7L, Long.MAX_VALUE)) {
+            assertSplit(sql, regionSize);
+        }
+    }
+
+    private static void assertSplit(String sql, long regionSize)
+            throws IOException
+    {
+        List<String> expected = new ArrayList<>();
+        StreamingStatementSplitter splitter = new StreamingStatementSplitter(expected::add);
+        splitter.feed(sql);
+        expected.add(splitter.getPartialStatement());
+
+        Path file = Files.createTempFile("queries", ".sql");
+        try {
+            Files.write(file, sql.getBytes(UTF_8));
+            List<String> statements = new ArrayList<>();
+            MappedStatementReader.split(file, regionSize, statements::add);
+            assertEquals(expected, statements);
+        }
+        finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testEmptyFile()
+            throws IOException
+    {
+        Path file = Files.createTempFile("empty", ".sql");
+        try {
+            List<String> statements = new ArrayList<>();
+            MappedStatementReader.split(file, statements::add);
+            assertEquals(ImmutableList.of(), statements);
+        }
+        finally {
+            Files.delete(file);
+        }
+    }
+}
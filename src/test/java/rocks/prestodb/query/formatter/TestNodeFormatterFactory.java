@@ -0,0 +1,66 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rocks.prestodb.query.formatter;
+
+import com.facebook.presto.sql.parser.SqlParser;
+import com.facebook.presto.sql.tree.AllColumns;
+import com.facebook.presto.sql.tree.ComparisonExpression;
+import com.facebook.presto.sql.tree.ComparisonExpressionType;
+import com.facebook.presto.sql.tree.Identifier;
+import com.facebook.presto.sql.tree.LongLiteral;
+import com.facebook.presto.sql.tree.QualifiedName;
+import com.facebook.presto.sql.tree.Statement;
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.ServiceLoader;
+
+import static com.facebook.presto.sql.QueryUtil.selectList;
+import static com.facebook.presto.sql.QueryUtil.simpleQuery;
+import static com.facebook.presto.sql.QueryUtil.table;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static rocks.prestodb.query.formatter.StatementFormatter.formatSql;
+
+public class TestNodeFormatterFactory
+{
+    private static final SqlParser SQL_PARSER = new SqlParser();
+
+    @Test
+    public void testServiceLoader()
+    {
+        List<NodeFormatterFactory> factories = ImmutableList.copyOf(ServiceLoader.load(NodeFormatterFactory.class));
+        assertEquals(1, factories.size());
+        assertTrue(factories.get(0) instanceof QueryFormatterFactory);
+
+        FormattingOptions options = FormattingOptions.DEFAULT.withMaxLineWidth(40);
+        NodeFormatter formatter = factories.get(0).create(options);
+        Statement statement = SQL_PARSER.createStatement("select a, b from t where a = 1 and b in (select c from u)");
+        assertEquals(formatSql(statement, options), formatter.format(statement));
+    }
+
+    @Test
+    public void testTreeBuiltInCode()
+    {
+        // no source locations, as in trees built by a coordinator plugin
+        Statement statement = simpleQuery(
+                selectList(new AllColumns()),
+                table(QualifiedName.of("t")),
+                new ComparisonExpression(ComparisonExpressionType.EQUAL, new Identifier("a"), new LongLiteral("1")));
+        String formatted = new QueryFormatterFactory().create(FormattingOptions.DEFAULT).format(statement);
+        assertEquals("SELECT *\nFROM\n  t\nWHERE (\"a\" = 1)\n", formatted);
+        assertEquals(statement, SQL_PARSER.createStatement(formatted));
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rocks.prestodb.query.formatter;
+
+import com.facebook.presto.sql.parser.SqlParser;
+import com.facebook.presto.sql.tree.Expression;
+import com.facebook.presto.sql.tree.FunctionCall;
+import com.facebook.presto.sql.tree.Identifier;
+import com.facebook.presto.sql.tree.QualifiedName;
+import com.facebook.presto.sql.tree.Query;
+import com.facebook.presto.sql.tree.QuerySpecification;
+import com.facebook.presto.sql.tree.Select;
+import com.facebook.presto.sql.tree.SingleColumn;
+import com.facebook.presto.sql.tree.SortItem;
+import com.facebook.presto.sql.tree.Statement;
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static java.util.stream.Collectors.toList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static rocks.prestodb.query.formatter.ExpressionFormatter.formatExpression;
+import static rocks.prestodb.query.formatter.StatementFormatter.formatSql;
+
+public class TestQueryFormatter
+{
+    private static final SqlParser SQL_PARSER = new SqlParser();
+
+    private final List<Statement> statements = new BufferedReader(new InputStreamReader(TestQueryFormatter.class.getResourceAsStream("/queries.txt"))).lines()
+            .map(SQL_PARSER::createStatement)
+            .collect(toList());
+
+    @Test
+    public void testMatchesFormatSql()
+    {
+        for (FormattingOptions options : new FormattingOptions[] {FormattingOptions.DEFAULT, FormattingOptions.DEFAULT.withMaxLineWidth(40)}) {
+            QueryFormatter formatter = new QueryFormatter(options);
+            // twice, so that the second pass runs on reused buffers
+            for (int pass = 0; pass < 2; pass++) {
+                for (Statement statement : statements) {
+                    assertEquals(formatSql(statement, options), formatter.format(statement));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testExpression()
+    {
+        QueryFormatter formatter = new QueryFormatter(FormattingOptions.DEFAULT);
+        Expression expression = SQL_PARSER.createExpression("a and (b or c) and x[1] = array[1, 2]");
+        assertEquals(formatExpression(expression, Optional.empty(), 0), formatter.format(expression));
+    }
+
+    @Test
+    public void testFailureDoesNotAffectNextStatement()
+    {
+        QueryFormatter formatter = new QueryFormatter(FormattingOptions.DEFAULT.withMaxLineWidth(40));
+        try {
+            formatter.format(new SortItem(SQL_PARSER.createExpression("a"), SortItem.Ordering.ASCENDING, SortItem.NullOrdering.UNDEFINED));
+            fail("expected UnsupportedOperationException");
+        }
+        catch (UnsupportedOperationException expected) {
+        }
+        Statement statement = statements.get(0);
+        assertEquals(formatSql(statement, formatter.getOptions()), formatter.format(statement));
+    }
+
+    @Test
+    public void testErrorDoesNotAffectNextStatement()
+            throws Exception
+    {
+        QueryFormatter formatter = new QueryFormatter(FormattingOptions.DEFAULT.withMaxLineWidth(40));
+        // nested function calls are formatted recursively, so a deep enough nesting overflows the stack
+        Expression expression = new Identifier("a");
+        for (int i = 0; i < 100_000; i++) {
+            expression = new FunctionCall(QualifiedName.of("f"), ImmutableList.of(expression));
+        }
+        Statement overflowing = new Query(Optional.empty(), new QuerySpecification(
+                new Select(false, ImmutableList.of(new SingleColumn(expression))),
+                Optional.empty(), Optional.empty(), Optional.empty(), Optional.empty(), Optional.empty(), Optional.empty()),
+                Optional.empty(), Optional.empty());
+        Statement statement = statements.get(0);
+
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        AtomicReference<String> formatted = new AtomicReference<>();
+        // formats on one small-stack thread, so that the second call would reuse the failed call's buffers
+        Thread thread = new Thread(null, () -> {
+            try {
+                formatter.format(overflowing);
+            }
+            catch (StackOverflowError e) {
+                error.set(e);
+            }
+            formatted.set(formatter.format(statement));
+        }, "small-stack", 256 * 1024);
+        thread.start();
+        thread.join();
+        assertTrue(error.get() instanceof StackOverflowError);
+        assertEquals(formatSql(statement, formatter.getOptions()), formatted.get());
+    }
+
+    @Test
+    public void testConcurrentUse()
+            throws Exception
+    {
+        QueryFormatter formatter = new QueryFormatter(FormattingOptions.DEFAULT);
+        List<String> expected = statements.stream()
+                .map(statement -> formatSql(statement, Optional.empty()))
+                .collect(toList());
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<List<String>>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                futures.add(executor.submit(() -> statements.stream()
+                        .map(formatter::format)
+                        .collect(toList())));
+            }
+            for (Future<List<String>> future : futures) {
+                assertEquals(expected, future.get());
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+}
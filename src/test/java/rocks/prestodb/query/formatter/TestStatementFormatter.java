@@ -48,6 +48,22 @@ public class TestStatementFormatter {
         testQuery(
                 "SELECT (1 = ANY(SELECT 1)) IN (SELECT TRUE)"
         );
+        testQuery(
+                "SELECT a FROM t WHERE EXISTS (SELECT 1 FROM u WHERE u.a = t.a AND u.b IN (SELECT b FROM v WHERE v.c = t.c))"
+        );
+        testQuery(
+                "CREATE TABLE \"Quoted\".s.t (\"A\" bigint, b varchar, LIKE x.\"Y\" INCLUDING PROPERTIES) WITH (\"Format\" = 'ORC')"
+        );
+    }
+
+    @Test
+    public void testFormatIntoAppendable() {
+        queries().forEach(query -> {
+            Statement statement = SQL_PARSER.createStatement(query);
+            StringBuilder builder = new StringBuilder();
+            formatSql(statement, builder);
+            assertEquals(formatSql(statement), builder.toString());
+        });
     }
 
     private Stream<String> queries() {
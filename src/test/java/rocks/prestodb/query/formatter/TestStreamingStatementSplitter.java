@@ -0,0 +1,112 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rocks.prestodb.query.formatter;
+
+import com.facebook.presto.sql.parser.StatementSplitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.util.stream.Collectors.joining;
+import static java.util.stream.Collectors.toList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestStreamingStatementSplitter
+{
+    @Test
+    public void testTerminators()
+    {
+        assertSplit("select 1; select 2\\G select 3", ImmutableList.of("select 1", "select 2"), "select 3");
+        assertSplit("select 1;;  ; ", ImmutableList.of("select 1"), "");
+        assertSplit("select '\\G'\\G", ImmutableList.of("select '\\G'"), "");
+        assertSplit("select 1 \\", ImmutableList.of(), "select 1 \\");
+    }
+
+    @Test
+    public void testFormatStatements()
+    {
+        assertEquals("<select 1>\n<select 2>\n", StreamingStatementSplitter.formatStatements("select 1; select 2", statement -> "<" + statement + ">"));
+        assertEquals("", StreamingStatementSplitter.formatStatements(" ; ", statement -> "<" + statement + ">"));
+    }
+
+    @Test
+    public void testQuotesAndComments()
+    {
+        assertSplit("select 'a;b''c;'; select \"x;\"\"y\"; select `z;`;",
+                ImmutableList.of("select 'a;b''c;'", "select \"x;\"\"y\"", "select `z;`"),
+                "");
+        assertSplit("select 1 -- comment; still comment\n; select 2 /* multi; * line; */;",
+                ImmutableList.of("select 1 -- comment; still comment", "select 2 /* multi; * line; */"),
+                "");
+        assertSplit("select 1 - 2 / 3; select 4 --", ImmutableList.of("select 1 - 2 / 3"), "select 4 --");
+        assertSplit("select 'unterminated; string", ImmutableList.of(), "select 'unterminated; string");
+    }
+
+    @Test
+    public void testOnlyComments()
+    {
+        assertSplit("select 1; -- trailing comment", ImmutableList.of("select 1"), "");
+        assertSplit("select 1; /* trailing */ -- comments\n", ImmutableList.of("select 1"), "");
+        assertSplit("/* not a statement */; select 2; /* unterminated", ImmutableList.of("select 2"), "");
+        assertSplit("select 1; -", ImmutableList.of("select 1"), "-");
+        assertEquals("<select 1>\n", StreamingStatementSplitter.formatStatements("select 1; -- trailing comment", statement -> "<" + statement + ">"));
+
+        assertTrue(StreamingStatementSplitter.containsComments("select 1 -- comment"));
+        assertTrue(StreamingStatementSplitter.containsComments("select /* comment */ 1"));
+        assertFalse(StreamingStatementSplitter.containsComments("select '--', \"/*\", 1 - -1, 4 / 2"));
+    }
+
+    @Test
+    public void testMatchesStatementSplitter()
+    {
+        String sql = queries().stream().collect(joining(";\n")) + ";\nselect 'partial";
+        StatementSplitter expected = new StatementSplitter(sql, ImmutableSet.of(";", "\\G"));
+        List<String> expectedStatements = expected.getCompleteStatements().stream()
+                .map(StatementSplitter.Statement::statement)
+                .collect(toList());
+
+        for (int chunkSize : ImmutableList.of(1, 2, 3, 7, 64, sql.length())) {
+            List<String> statements = new ArrayList<>();
+            StreamingStatementSplitter splitter = new StreamingStatementSplitter(statements::add);
+            char[] chars = sql.toCharArray();
+            for (int offset = 0; offset < chars.length; offset += chunkSize) {
+                splitter.feed(chars, offset, Math.min(chunkSize, chars.length - offset));
+            }
+            assertEquals(expectedStatements, statements);
+            assertEquals(expected.getPartialStatement(), splitter.getPartialStatement());
+        }
+    }
+
+    private static void assertSplit(String sql, List<String> statements, String partial)
+    {
+        List<String> actual = new ArrayList<>();
+        StreamingStatementSplitter splitter = new StreamingStatementSplitter(actual::add);
+        splitter.feed(sql);
+        assertEquals(statements, actual);
+        assertEquals(partial, splitter.getPartialStatement());
+    }
+
+    private static List<String> queries()
+    {
+        return new BufferedReader(new InputStreamReader(TestStreamingStatementSplitter.class.getResourceAsStream("/queries.txt"))).lines()
+                .collect(toList());
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rocks.prestodb.query.formatter;
+
+import com.facebook.presto.sql.parser.SqlParser;
+import com.facebook.presto.sql.tree.Statement;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static io.airlift.airline.SingleCommand.singleCommand;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static rocks.prestodb.query.formatter.StatementFormatter.formatSql;
+
+public class TestVerifier
+{
+    private static final SqlParser SQL_PARSER = new SqlParser();
+
+    // written as one AND chain, which parses to a different tree
+    private static final String MISMATCHING_SQL = "select x from t where a and (b and c)";
+
+    private final Statement statement = SQL_PARSER.createStatement("select a from t");
+    private final Statement mismatching = SQL_PARSER.createStatement(MISMATCHING_SQL);
+
+    @Test
+    public void testAlways()
+    {
+        Verifier verifier = new Verifier(SQL_PARSER, Verifier.Mode.ALWAYS, 0);
+        assertTrue(verifier.verify(statement, formatSql(statement)));
+        assertFalse(verifier.verify(mismatching, formatSql(mismatching)));
+        assertFalse(verifier.verify(statement, "select from"));
+        assertCounts(verifier, 3, 0, 2);
+        assertEquals(3, verifier.getLatency().getCount());
+    }
+
+    @Test
+    public void testSampled()
+    {
+        Verifier never = new Verifier(SQL_PARSER, Verifier.Mode.SAMPLED, 0);
+        assertTrue(never.verify(mismatching, formatSql(mismatching)));
+        assertCounts(never, 0, 1, 0);
+
+        Verifier always = new Verifier(SQL_PARSER, Verifier.Mode.SAMPLED, 1);
+        assertTrue(always.verify(statement, formatSql(statement)));
+        assertFalse(always.verify(mismatching, formatSql(mismatching)));
+        assertCounts(always, 2, 0, 1);
+    }
+
+    @Test
+    public void testOff()
+    {
+        Verifier verifier = new Verifier(SQL_PARSER, Verifier.Mode.OFF, 1);
+        assertTrue(verifier.verify(mismatching, formatSql(mismatching)));
+        assertCounts(verifier, 0, 1, 0);
+        assertEquals(0, verifier.getLatency().getCount());
+    }
+
+    @Test
+    public void testAsync()
+    {
+        Verifier verifier = new Verifier(SQL_PARSER, Verifier.Mode.ASYNC, 0);
+        // the outcome is not known yet
+        assertTrue(verifier.verify(statement, formatSql(statement)));
+        assertTrue(verifier.verify(mismatching, formatSql(mismatching)));
+        verifier.close();
+        assertCounts(verifier, 2, 0, 1);
+        assertEquals("Verification (ASYNC): 2 verified, 0 skipped, 1 mismatches", verifier.getSummary());
+    }
+
+    @Test
+    public void testCloseWhenInterrupted()
+    {
+        Verifier verifier = new Verifier(SQL_PARSER, Verifier.Mode.ASYNC, 0);
+        verifier.verify(statement, formatSql(statement));
+        Thread.currentThread().interrupt();
+        verifier.close();
+        // the interrupt is kept for the caller
+        assertTrue(Thread.interrupted());
+    }
+
+    @Test
+    public void testExitStatus()
+            throws Exception
+    {
+        assertTrue(run("select a from t;", "ALWAYS"));
+        assertFalse(run(MISMATCHING_SQL + ";", "ASYNC"));
+        // not checked
+        assertTrue(run(MISMATCHING_SQL + ";", "OFF"));
+    }
+
+    @Test
+    public void testMismatchFailsInAlwaysMode()
+            throws Exception
+    {
+        Path input = Files.createTempFile("verifier", ".sql");
+        Path output = Files.createTempFile("verifier", ".sql");
+        try {
+            Files.write(input, ("select a from t;" + MISMATCHING_SQL + ";select b from t;").getBytes(UTF_8));
+            Main main = singleCommand(Main.class).parse("--input", input.toString(), "--output", output.toString());
+            try {
+                main.run();
+                fail("expected IllegalStateException");
+            }
+            catch (IllegalStateException e) {
+                assertEquals("Formatted SQL is different than original", e.getMessage());
+            }
+            // the mismatching statement, and anything after it, is not written
+            assertEquals("SELECT \"a\"\nFROM\n  t\n;" + System.lineSeparator(), new String(Files.readAllBytes(output), UTF_8));
+        }
+        finally {
+            Files.deleteIfExists(input);
+            Files.deleteIfExists(output);
+        }
+    }
+
+    private static boolean run(String sql, String verificationMode)
+            throws Exception
+    {
+        Path input = Files.createTempFile("verifier", ".sql");
+        Path output = Files.createTempFile("verifier", ".sql");
+        try {
+            Files.write(input, sql.getBytes(UTF_8));
+            return singleCommand(Main.class)
+                    .parse("--input", input.toString(), "--output", output.toString(), "--verify", verificationMode)
+                    .run();
+        }
+        finally {
+            Files.deleteIfExists(input);
+            Files.deleteIfExists(output);
+        }
+    }
+
+    private static void assertCounts(Verifier verifier, long verified, long skipped, long mismatches)
+    {
+        assertEquals(verified, verifier.getVerified());
+        assertEquals(skipped, verifier.getSkipped());
+        assertEquals(mismatches, verifier.getMismatches());
+    }
+}